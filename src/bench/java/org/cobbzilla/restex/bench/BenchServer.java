@@ -0,0 +1,50 @@
+package org.cobbzilla.restex.bench;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * In-process Jetty for the benchmarks. Every request body is read and thrown away. The response is
+ * GET /body/{size}?headers={count} : size bytes of text/plain plus count extra headers, the same bytes every time.
+ */
+public class BenchServer {
+
+    private final Server server = new Server(0);
+    private final byte[] body;
+
+    public BenchServer (int maxBodySize) {
+        body = new byte[maxBodySize];
+        Arrays.fill(body, (byte) 'x');
+        server.setHandler(new AbstractHandler() {
+            @Override public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+                IOUtils.copyLarge(request.getInputStream(), NullOutputStream.NULL_OUTPUT_STREAM);
+                final int size = target.startsWith("/body/") ? Integer.parseInt(target.substring("/body/".length())) : 0;
+                final String headers = request.getParameter("headers");
+                for (int i = 0, count = headers == null ? 0 : Integer.parseInt(headers); i < count; i++) {
+                    response.addHeader("X-Bench-" + i, "value-" + i);
+                }
+                response.setStatus(200);
+                response.setContentType("text/plain");
+                response.setContentLength(size);
+                response.getOutputStream().write(body, 0, size);
+                baseRequest.setHandled(true);
+            }
+        });
+    }
+
+    public void start () throws Exception { server.start(); }
+
+    public void stop () throws Exception { server.stop(); }
+
+    public String getBaseUri () { return "http://127.0.0.1:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort(); }
+
+}
@@ -0,0 +1,121 @@
+package org.cobbzilla.restex.bench;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.cobbzilla.restex.RestexPoolingClientConnectionManager;
+import org.cobbzilla.restex.targets.SimpleCaptureTarget;
+import org.cobbzilla.restex.targets.TemplateCaptureTarget;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One request/response exchange against an in-process Jetty, without restex ("plain") and with restex
+ * capturing into a SimpleCaptureTarget or a TemplateCaptureTarget session. Both sides use a connection pool,
+ * so the connection wrapper is the only difference. Run with -prof gc to see the allocation rate.
+ *
+ * The template case discards its session after each exchange: rendering is measured by RenderBenchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class ExchangeBenchmark {
+
+    public static final int MAX_BODY_SIZE = 50 * 1024 * 1024;
+
+    @Param({"plain", "simple", "template"}) public String capture;
+
+    // "response" downloads bodySize bytes with a GET, "request" uploads them with a POST
+    @Param({"response", "request"}) public String direction;
+
+    @Param({"0", "1024", "65536", "1048576", "52428800"}) public int bodySize;
+
+    @Param({"0", "10", "50"}) public int headerCount;
+
+    private BenchServer server;
+    private CloseableHttpClient plainClient;
+    private RestexPoolingClientConnectionManager restex;
+    private HttpClient client;
+    private TemplateCaptureTarget templateTarget;
+    private File docsDir;
+
+    private String uri;
+    private boolean upload;
+    private byte[] requestBody;
+
+    @Setup(Level.Trial)
+    public void setUp () throws Exception {
+        server = new BenchServer(MAX_BODY_SIZE);
+        server.start();
+
+        switch (capture) {
+            case "plain":
+                plainClient = HttpClients.custom().setConnectionManager(new PoolingHttpClientConnectionManager()).build();
+                client = plainClient;
+                break;
+            case "simple":
+                restex = new RestexPoolingClientConnectionManager(new SimpleCaptureTarget());
+                client = restex.getHttpClient();
+                break;
+            case "template":
+                docsDir = Files.createTempDirectory("restex-bench").toFile();
+                templateTarget = new TemplateCaptureTarget(docsDir);
+                restex = new RestexPoolingClientConnectionManager(templateTarget);
+                client = restex.getHttpClient();
+                break;
+            default: throw new IllegalArgumentException("unknown capture: "+capture);
+        }
+
+        upload = direction.equals("request");
+        uri = server.getBaseUri() + "/body/" + (upload ? 0 : bodySize) + "?headers=" + headerCount;
+        requestBody = new byte[upload ? bodySize : 0];
+        Arrays.fill(requestBody, (byte) 'x');
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown () throws Exception {
+        if (plainClient != null) plainClient.close();
+        if (restex != null) restex.close();
+        if (docsDir != null) FileUtils.deleteQuietly(docsDir);
+        server.stop();
+    }
+
+    @Benchmark
+    public int exchange () throws Exception {
+        if (templateTarget != null) templateTarget.startRecording("bench", "exchange");
+        try {
+            final HttpRequestBase request;
+            if (upload) {
+                final HttpPost post = new HttpPost(uri);
+                post.setEntity(new ByteArrayEntity(requestBody, ContentType.APPLICATION_OCTET_STREAM));
+                request = post;
+            } else {
+                request = new HttpGet(uri);
+            }
+            for (int i = 0; i < headerCount; i++) request.addHeader("X-Bench-" + i, "value-" + i);
+
+            final HttpResponse response = client.execute(request);
+            final byte[] body = EntityUtils.toByteArray(response.getEntity());
+            return response.getStatusLine().getStatusCode() + body.length;
+        } finally {
+            if (templateTarget != null) templateTarget.reset();
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+package org.cobbzilla.restex.bench;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.http.entity.ContentType;
+import org.cobbzilla.restex.targets.LogCaptureTarget;
+import org.cobbzilla.restex.targets.RecordingSession;
+import org.cobbzilla.restex.targets.SessionCaptureTarget;
+import org.cobbzilla.restex.targets.TemplateCaptureTarget;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What it costs to turn captured sessions into docs: commit() for one session, and close() once the sessions of
+ * a whole run have been committed. No network here, the sessions are filled in directly.
+ *
+ * "template" is the default TemplateCaptureTarget, "appendOnly" the same with append-only output, and "log" is a
+ * LogCaptureTarget, which only appends to the capture log.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgs = {"-Xms2g", "-Xmx2g"})
+public class RenderBenchmark {
+
+    public abstract static class Docs {
+
+        @Param({"template", "appendOnly", "log"}) public String target;
+
+        @Param({"1", "10"}) public int exchanges;
+
+        @Param({"0", "1024", "65536", "1048576"}) public int bodySize;
+
+        // sessions committed before each close()
+        @Param({"100"}) public int sessions;
+
+        SessionCaptureTarget docs;
+        File dir;
+        ByteBuffer body;
+        int count = 0;
+
+        @Setup(Level.Trial)
+        public void setUpBody () {
+            final StringBuilder b = new StringBuilder(bodySize);
+            while (b.length() < bodySize) b.append("{\"name\":\"value\"}\n");
+            body = ByteBuffer.wrap(b.substring(0, bodySize).getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+        }
+
+        void open () throws IOException {
+            dir = Files.createTempDirectory("restex-bench").toFile();
+            switch (target) {
+                case "template": docs = new TemplateCaptureTarget(dir); break;
+                case "appendOnly":
+                    final TemplateCaptureTarget appendOnly = new TemplateCaptureTarget(dir);
+                    appendOnly.setAppendOnly(true);
+                    docs = appendOnly;
+                    break;
+                case "log": docs = new LogCaptureTarget(dir); break;
+                default: throw new IllegalArgumentException("unknown target: "+target);
+            }
+        }
+
+        void commitSession () throws IOException {
+            final int n = count++;
+            final RecordingSession session = docs.newSession("context " + (n % 10), "session " + n);
+            for (int i = 0; i < exchanges; i++) {
+                session.addNote("step " + i);
+                session.requestUri("POST", "/bench/" + n + "/" + i);
+                session.requestHeader("Accept", "application/json");
+                session.requestHeader("Content-Type", "application/json");
+                session.requestEntity(body.duplicate(), ContentType.APPLICATION_JSON);
+                session.responseStatus(200, "OK", "HTTP/1.1");
+                session.responseHeader("Content-Type", "application/json");
+                session.responseEntity(body.duplicate(), ContentType.APPLICATION_JSON);
+            }
+            docs.commit(session);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class OpenDocs extends Docs {
+
+        // a fresh directory every iteration keeps the output files from growing across the whole trial
+        @Setup(Level.Iteration)
+        public void setUp () throws IOException { open(); }
+
+        @TearDown(Level.Iteration)
+        public void tearDown () throws IOException {
+            docs.close();
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class CommittedDocs extends Docs {
+
+        @Setup(Level.Invocation)
+        public void setUp () throws IOException {
+            if (dir != null) FileUtils.deleteQuietly(dir);
+            open();
+            for (int i = 0; i < sessions; i++) commitSession();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown () { FileUtils.deleteQuietly(dir); }
+    }
+
+    @Benchmark
+    public void commit (OpenDocs docs) throws IOException { docs.commitSession(); }
+
+    // only the close() is timed; the sessions are committed in the per-invocation setup
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 5, batchSize = 1)
+    @Measurement(iterations = 20, batchSize = 1)
+    public void close (CommittedDocs docs) throws IOException { docs.docs.close(); }
+
+}
@@ -0,0 +1,85 @@
+package org.cobbzilla.restex;
+
+import lombok.Getter;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.entity.ContentType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Pattern;
+
+/**
+ * A CapturePolicy built from method and URI filters, entity content-type and size limits, and a sampling rate.
+ * With nothing configured, everything is captured.
+ *
+ *     new BasicCapturePolicy().methods("GET", "POST").includeUri("^/api/.+").excludeUri("^/health$").sampleRate(0.1)
+ */
+public class BasicCapturePolicy implements CapturePolicy {
+
+    private final Set<String> methods = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    private final List<Pattern> includeUris = new ArrayList<>();
+    private final List<Pattern> excludeUris = new ArrayList<>();
+    private final List<String> contentTypes = new ArrayList<>();
+    @Getter private long maxBodySize = -1;
+    @Getter private double sampleRate = 1.0;
+
+    public BasicCapturePolicy methods(String... methods) {
+        for (String method : methods) this.methods.add(method);
+        return this;
+    }
+
+    /** Capture only URIs matching at least one of the include patterns (if there are any) */
+    public BasicCapturePolicy includeUri(String regex) { includeUris.add(Pattern.compile(regex)); return this; }
+
+    public BasicCapturePolicy excludeUri(String regex) { excludeUris.add(Pattern.compile(regex)); return this; }
+
+    /** Capture only entities whose mime type starts with one of these, e.g. "application/json" or "text/" */
+    public BasicCapturePolicy contentTypes(String... mimeTypePrefixes) {
+        for (String prefix : mimeTypePrefixes) contentTypes.add(prefix.toLowerCase());
+        return this;
+    }
+
+    /** Skip entities that declare a Content-Length over this. Entities of unknown length are still captured. */
+    public BasicCapturePolicy maxBodySize(long maxBodySize) { this.maxBodySize = maxBodySize; return this; }
+
+    /** Capture this fraction of the exchanges that pass the filters, between 0.0 and 1.0 */
+    public BasicCapturePolicy sampleRate(double sampleRate) {
+        if (sampleRate < 0 || sampleRate > 1) throw new IllegalArgumentException("sampleRate must be between 0 and 1: "+sampleRate);
+        this.sampleRate = sampleRate;
+        return this;
+    }
+
+    @Override public boolean captureExchange(HttpRequest request) {
+        if (!methods.isEmpty() && !methods.contains(request.getRequestLine().getMethod())) return false;
+
+        final String uri = request.getRequestLine().getUri();
+        if (!includeUris.isEmpty() && !matchesAny(includeUris, uri)) return false;
+        if (matchesAny(excludeUris, uri)) return false;
+
+        return sampleRate >= 1.0 || ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+
+    @Override public boolean captureEntity(HttpEntity entity) {
+        if (maxBodySize >= 0 && entity.getContentLength() > maxBodySize) return false;
+        if (contentTypes.isEmpty()) return true;
+
+        final ContentType contentType = RestexEntities.contentType(entity);
+        if (contentType == null) return false;
+        final String mimeType = contentType.getMimeType().toLowerCase();
+        for (String prefix : contentTypes) {
+            if (mimeType.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+    private boolean matchesAny(List<Pattern> patterns, String uri) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(uri).matches()) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,53 @@
+package org.cobbzilla.restex;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Serves an entity from the copy that was already read from it, while keeping the
+ * original Content-Type, Content-Encoding and chunking metadata. Like the entity off the
+ * wire that it stands in for, it can be read once: the copy is released when a stream
+ * obtained from getContent() is closed, or when writeTo() is done.
+ */
+public class BufferedEntityWrapper extends HttpEntityWrapper {
+
+    private final CaptureBuffer data;
+    private final long length;
+    private boolean consumed = false;
+
+    public BufferedEntityWrapper(HttpEntity entity, CaptureBuffer data) {
+        super(entity);
+        this.data = data;
+        this.length = data.getSize();
+    }
+
+    @Override public boolean isRepeatable() { return false; }
+    @Override public boolean isStreaming() { return false; }
+    @Override public long getContentLength() { return length; }
+
+    @Override public synchronized InputStream getContent() throws IOException {
+        if (consumed) throw new IllegalStateException("getContent: content has already been consumed");
+        consumed = true;
+        return new FilterInputStream(data.getInputStream()) {
+            @Override public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    data.close();
+                }
+            }
+        };
+    }
+
+    @Override public void writeTo(OutputStream out) throws IOException {
+        try (InputStream in = getContent()) {
+            IOUtils.copyLarge(in, out);
+        }
+    }
+}
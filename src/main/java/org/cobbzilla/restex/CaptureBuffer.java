@@ -0,0 +1,146 @@
+package org.cobbzilla.restex;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A copy of an entity that stops growing once it reaches its limit. Bytes past the limit are counted but not kept.
+ *
+ * Up to spillThreshold bytes are kept on the heap. Past that, the copy moves to a temp file, and toByteBuffer()
+ * hands out a read-only memory-mapped view of it, so a large body never costs more than spillThreshold of heap.
+ * close() deletes the temp file; on most platforms a mapped view stays readable after that. A buffer that is never
+ * closed has its temp file deleted once it is garbage collected.
+ */
+@Slf4j
+public class CaptureBuffer extends OutputStream {
+
+    public static final int DEFAULT_CAPTURE_LIMIT = 1024 * 1024;
+    public static final int DEFAULT_SPILL_THRESHOLD = 256 * 1024;
+
+    private static final Cleaner cleaner = Cleaner.create();
+
+    @Getter private final long limit;
+    @Getter private final int spillThreshold;
+    @Getter private long totalBytes = 0;
+    @Getter private long size = 0;
+
+    private byte[] heap;
+    private File spillFile;
+    private OutputStream spill;
+    private Cleaner.Cleanable spillCleanup;
+
+    public CaptureBuffer(long limit) { this(limit, DEFAULT_SPILL_THRESHOLD); }
+
+    public CaptureBuffer(long limit, int spillThreshold) {
+        this.limit = limit;
+        this.spillThreshold = spillThreshold;
+        this.heap = new byte[(int) Math.min(limit, Math.min(spillThreshold, 8192))];
+    }
+
+    public boolean isTruncated() { return totalBytes > size; }
+
+    public boolean isSpilled() { return spillFile != null; }
+
+    @Override public synchronized void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override public synchronized void write(byte[] b, int off, int len) throws IOException {
+        totalBytes += len;
+        final int keep = (int) Math.min(len, limit - size);
+        if (keep <= 0) return;
+
+        if (spill == null && size + keep > spillThreshold) startSpill();
+        if (spill != null) {
+            spill.write(b, off, keep);
+        } else {
+            if (size + keep > heap.length) heap = Arrays.copyOf(heap, (int) Math.min(spillThreshold, Math.max(heap.length * 2, size + keep)));
+            System.arraycopy(b, off, heap, (int) size, keep);
+        }
+        size += keep;
+    }
+
+    /** Copies the remaining bytes of data, leaving its position where it was */
+    public synchronized void write(ByteBuffer data) throws IOException {
+        if (size >= limit) {
+            totalBytes += data.remaining(); // full, only counting from here on
+        } else if (data.hasArray()) {
+            write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        } else {
+            final ByteBuffer bytes = data.duplicate();
+            final byte[] chunk = new byte[Math.min(bytes.remaining(), 8192)];
+            while (bytes.hasRemaining()) {
+                final int n = Math.min(chunk.length, bytes.remaining());
+                bytes.get(chunk, 0, n);
+                write(chunk, 0, n);
+            }
+        }
+    }
+
+    private void startSpill() throws IOException {
+        spillFile = File.createTempFile("restex-capture-", ".body");
+        spillCleanup = cleaner.register(this, new DeleteFile(spillFile));
+        spill = new BufferedOutputStream(new FileOutputStream(spillFile));
+        spill.write(heap, 0, (int) size);
+        heap = null;
+    }
+
+    @Override public synchronized void flush() throws IOException { if (spill != null) spill.flush(); }
+
+    /** @return a read-only view of the captured bytes (at most 2GB of them), memory-mapped if the copy was spilled */
+    public synchronized ByteBuffer toByteBuffer() throws IOException {
+        if (spill == null) return ByteBuffer.wrap(heap, 0, (int) size).asReadOnlyBuffer();
+        spill.flush();
+        try (FileChannel channel = FileChannel.open(spillFile.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, Integer.MAX_VALUE));
+        }
+    }
+
+    /** @return a stream over the captured bytes, it can be called more than once */
+    public synchronized InputStream getInputStream() throws IOException {
+        if (spill == null) return new ByteArrayInputStream(heap, 0, (int) size);
+        spill.flush();
+        return new BufferedInputStream(Files.newInputStream(spillFile.toPath()));
+    }
+
+    public synchronized void reset() {
+        close();
+        heap = new byte[(int) Math.min(limit, Math.min(spillThreshold, 8192))];
+        totalBytes = 0;
+        size = 0;
+    }
+
+    /** Releases the copy. Buffers already handed out by toByteBuffer() remain valid. */
+    @Override public synchronized void close() {
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (IOException e) {
+                log.warn("close: error closing "+spillFile+": "+e);
+            }
+            spillCleanup.clean();
+            spill = null;
+            spillFile = null;
+            spillCleanup = null;
+        }
+        heap = new byte[0];
+        size = 0;
+    }
+
+    // must not refer to the buffer, or the buffer would never become unreachable
+    private static class DeleteFile implements Runnable {
+        private final File file;
+        DeleteFile(File file) { this.file = file; }
+        @Override public void run() {
+            if (file.exists() && !file.delete()) log.warn("could not delete spilled capture "+file);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.cobbzilla.restex;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Passes bytes through to the reader as they arrive, keeping a bounded copy in a CaptureBuffer.
+ * The listener is notified once, when the stream reaches EOF or is closed, whichever comes first.
+ */
+public class CaptureInputStream extends FilterInputStream {
+
+    public interface Listener { void captured(CaptureBuffer buffer) throws IOException; }
+
+    private final CaptureBuffer buffer;
+    private final Listener listener;
+    private boolean done = false;
+
+    public CaptureInputStream(InputStream in, CaptureBuffer buffer, Listener listener) {
+        super(in);
+        this.buffer = buffer;
+        this.listener = listener;
+    }
+
+    @Override public int read() throws IOException {
+        final int b = super.read();
+        if (b == -1) {
+            finish();
+        } else {
+            buffer.write(b);
+        }
+        return b;
+    }
+
+    @Override public int read(byte[] b, int off, int len) throws IOException {
+        final int n = super.read(b, off, len);
+        if (n == -1) {
+            finish();
+        } else if (n > 0) {
+            buffer.write(b, off, n);
+        }
+        return n;
+    }
+
+    // skipped bytes still have to be read so the capture stays complete
+    @Override public long skip(long n) throws IOException {
+        final byte[] scratch = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            final int count = read(scratch, 0, (int) Math.min(n - skipped, scratch.length));
+            if (count == -1) break;
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override public boolean markSupported() { return false; }
+
+    @Override public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            finish();
+        }
+    }
+
+    private void finish() throws IOException {
+        if (done) return;
+        done = true;
+        listener.captured(buffer);
+    }
+}
@@ -0,0 +1,22 @@
+package org.cobbzilla.restex;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+
+/**
+ * Decides which exchanges are captured. Exchanges that are not selected pass through the
+ * connection untouched: no callbacks, no header walking and no copying of their entities.
+ */
+public interface CapturePolicy {
+
+    public static final CapturePolicy ALL = request -> true;
+
+    /** Called before the request headers are sent */
+    public boolean captureExchange(HttpRequest request);
+
+    /**
+     * Called for the request and response entities of a selected exchange. An entity that is
+     * not captured is still sent or received normally, the target only learns that it was skipped.
+     */
+    public default boolean captureEntity(HttpEntity entity) { return true; }
+}
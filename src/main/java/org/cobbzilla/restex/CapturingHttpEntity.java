@@ -0,0 +1,47 @@
+package org.cobbzilla.restex;
+
+import org.apache.commons.io.output.TeeOutputStream;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Wraps an entity so that its bytes are teed into a CaptureBuffer while they are being
+ * read (responses) or written (requests). Nothing is buffered ahead of the real consumer.
+ */
+public class CapturingHttpEntity extends HttpEntityWrapper {
+
+    private final CaptureBuffer buffer;
+    private final CaptureInputStream.Listener listener;
+    private final AtomicBoolean notified = new AtomicBoolean(false);
+
+    public CapturingHttpEntity(HttpEntity entity, int captureLimit, CaptureInputStream.Listener listener) {
+        super(entity);
+        this.buffer = new CaptureBuffer(captureLimit);
+        this.listener = listener;
+    }
+
+    @Override public InputStream getContent() throws IOException {
+        return new CaptureInputStream(wrappedEntity.getContent(), buffer, this::notifyListener);
+    }
+
+    @Override public void writeTo(OutputStream out) throws IOException {
+        buffer.reset();
+        wrappedEntity.writeTo(new TeeOutputStream(out, buffer));
+        notifyListener(buffer);
+    }
+
+    private void notifyListener(CaptureBuffer captured) throws IOException {
+        if (notified.compareAndSet(false, true)) {
+            try {
+                listener.captured(captured);
+            } finally {
+                captured.close();
+            }
+        }
+    }
+}
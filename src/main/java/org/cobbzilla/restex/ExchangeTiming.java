@@ -0,0 +1,59 @@
+package org.cobbzilla.restex;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Monotonic System.nanoTime() marks for the phases of one exchange, and the size of each body.
+ * A mark or size of -1 means that phase was not seen (for example, a request with no entity).
+ * The marks only mean something relative to each other, and only within the JVM that took them.
+ */
+@NoArgsConstructor @AllArgsConstructor
+public class ExchangeTiming {
+
+    @Getter @Setter private long requestStarted = -1;
+    @Getter @Setter private long requestHeaderSent = -1;
+    @Getter @Setter private long requestSent = -1;
+    @Getter @Setter private long responseHeaderReceived = -1;
+    @Getter @Setter private long responseReceived = -1;
+
+    @Getter @Setter private long requestBytes = -1;
+    @Getter @Setter private long responseBytes = -1;
+
+    public static ExchangeTiming start () {
+        final ExchangeTiming timing = new ExchangeTiming();
+        timing.requestStarted = System.nanoTime();
+        return timing;
+    }
+
+    public void requestHeaderSent () { requestHeaderSent = System.nanoTime(); }
+
+    public void requestSent (long bytes) { requestSent = System.nanoTime(); requestBytes = bytes; }
+
+    public void responseHeaderReceived () {
+        responseHeaderReceived = System.nanoTime();
+        // no entity was sent, so the request was done once its header was
+        if (requestSent == -1) requestSent = requestHeaderSent;
+    }
+
+    public void responseReceived (long bytes) { responseReceived = System.nanoTime(); responseBytes = bytes; }
+
+    public long getTotalNanos () { return elapsed(requestStarted, responseReceived); }
+    public long getSendNanos () { return elapsed(requestStarted, requestSent); }
+    public long getFirstByteNanos () { return elapsed(requestSent, responseHeaderReceived); }
+    public long getReceiveNanos () { return elapsed(responseHeaderReceived, responseReceived); }
+
+    public String getTotal () { return LatencyHistogram.format(getTotalNanos()); }
+    public String getSend () { return LatencyHistogram.format(getSendNanos()); }
+    public String getFirstByte () { return LatencyHistogram.format(getFirstByteNanos()); }
+    public String getReceive () { return LatencyHistogram.format(getReceiveNanos()); }
+
+    private static long elapsed (long from, long to) { return from == -1 || to == -1 ? -1 : to - from; }
+
+    @Override public String toString() {
+        return "total=" + getTotal() + ", send=" + getSend() + ", firstByte=" + getFirstByte() + ", receive=" + getReceive()
+                + ", requestBytes=" + requestBytes + ", responseBytes=" + responseBytes;
+    }
+}
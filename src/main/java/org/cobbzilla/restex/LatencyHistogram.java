@@ -0,0 +1,91 @@
+package org.cobbzilla.restex;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.util.Locale;
+
+/**
+ * Latencies in nanoseconds, bucketed the way HdrHistogram does it: every power of two is split into
+ * SUB_BUCKETS linear buckets, so any recorded value is known to within about 3% at a fixed, small size.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 2) * HALF;
+
+    private final long[] counts = new long[BUCKETS];
+    @Getter private long count;
+    @Getter private long min = Long.MAX_VALUE;
+    @Getter private long max = 0;
+
+    public synchronized void record (long nanos) {
+        if (nanos < 0) return;
+        counts[index(nanos)]++;
+        count++;
+        if (nanos < min) min = nanos;
+        if (nanos > max) max = nanos;
+    }
+
+    public synchronized void add (LatencyHistogram other) {
+        synchronized (other) {
+            for (int i=0; i<BUCKETS; i++) counts[i] += other.counts[i];
+            count += other.count;
+            if (other.min < min) min = other.min;
+            if (other.max > max) max = other.max;
+        }
+    }
+
+    /** @return the latency (in nanos) that percentile percent of the recorded values are at or below, -1 if none */
+    public synchronized long getValueAtPercentile (double percentile) {
+        if (count == 0) return -1;
+        if (percentile >= 100) return max;
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i=0; i<BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.max(min, Math.min(max, midpoint(i)));
+        }
+        return max;
+    }
+
+    public synchronized Summary summarize () {
+        return count == 0 ? null : new Summary(count, getValueAtPercentile(50), getValueAtPercentile(99), max);
+    }
+
+    static int index (long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        final int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    private static long midpoint (int index) {
+        if (index < SUB_BUCKETS) return index;
+        final int shift = index / HALF - 1;
+        final long low = (long) (index - shift * HALF) << shift;
+        return low + (1L << shift) / 2;
+    }
+
+    /** @return nanos as milliseconds, for display */
+    public static String format (long nanos) {
+        return nanos < 0 ? "-" : String.format(Locale.ROOT, "%.2f ms", nanos / 1_000_000.0);
+    }
+
+    /** The numbers the docs show for a histogram; small enough to keep in the docs manifest */
+    @NoArgsConstructor @AllArgsConstructor
+    public static class Summary {
+        @Getter @Setter private long count;
+        @Getter @Setter private long p50Nanos;
+        @Getter @Setter private long p99Nanos;
+        @Getter @Setter private long maxNanos;
+
+        @JsonIgnore public String getP50 () { return format(p50Nanos); }
+        @JsonIgnore public String getP99 () { return format(p99Nanos); }
+        @JsonIgnore public String getMax () { return format(maxNanos); }
+    }
+}
@@ -0,0 +1,162 @@
+package org.cobbzilla.restex;
+
+import org.apache.http.*;
+import org.apache.http.entity.ContentType;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * What restex has seen of one HttpAsyncClient exchange. The producer and consumer wrappers fill it in from the
+ * I/O reactor threads, copying at most captureLimit bytes of each body into memory and never touching the disk.
+ * The target gets the whole exchange at once when the response is complete, so a failed exchange leaves no trace.
+ */
+class RestexAsyncExchange {
+
+    private final RestexCaptureTarget target;
+    private final CapturePolicy capturePolicy;
+    private final int captureLimit;
+    private final AtomicBoolean delivered = new AtomicBoolean(false);
+
+    private ExchangeTiming timing;
+    private boolean capturing;
+
+    private HttpRequest request;
+    private boolean requestEnclosing;
+    private ContentType requestContentType;
+    private CaptureBuffer requestBody;
+    private String binaryRequest;
+    private boolean requestReset;
+
+    private HttpResponse response;
+    private ContentType responseContentType;
+    private CaptureBuffer responseBody;
+    private String binaryResponse;
+
+    RestexAsyncExchange(RestexCaptureTarget target, CapturePolicy capturePolicy, int captureLimit) {
+        this.target = target;
+        this.capturePolicy = capturePolicy;
+        this.captureLimit = captureLimit;
+    }
+
+    synchronized boolean isCapturingRequest() { return requestBody != null; }
+    synchronized boolean isCapturingResponse() { return responseBody != null; }
+
+    synchronized void requestGenerated(HttpRequest request) {
+        capturing = capturePolicy.captureExchange(request);
+        if (!capturing) return;
+        timing = ExchangeTiming.start();
+        timing.requestHeaderSent(); // the header goes out as soon as it is generated, nothing is sent before it
+        this.request = request;
+        requestEnclosing = request instanceof HttpEntityEnclosingRequest;
+        final HttpEntity entity = requestEnclosing ? ((HttpEntityEnclosingRequest) request).getEntity() : null;
+        if (entity == null) return;
+        requestContentType = RestexEntities.contentType(entity);
+        if (capturePolicy.captureEntity(entity)) {
+            requestBody = newBuffer();
+        } else {
+            binaryRequest = RestexEntities.skippedHint(entity);
+        }
+    }
+
+    synchronized void requestContent(ByteBuffer data, int position, int length) {
+        if (requestReset && length > 0) {
+            // the content is being sent again, start the copy over
+            requestReset = false;
+            requestBody.reset();
+        }
+        copy(data, position, length, requestBody);
+    }
+
+    synchronized void requestCompleted(HttpContext context) {
+        if (!capturing) return;
+        // protocol interceptors add headers (Host, Content-Length...) after the request is generated, show what was sent
+        final Object sent = context == null ? null : context.getAttribute(HttpCoreContext.HTTP_REQUEST);
+        if (sent instanceof HttpRequest) request = (HttpRequest) sent;
+        timing.requestSent(requestBody == null ? 0 : requestBody.getTotalBytes());
+    }
+
+    // the client resets the producer after every complete send, not only before a retry, so keep the copy until it is rewritten
+    synchronized void resetRequest() { requestReset = requestBody != null; }
+
+    synchronized void responseReceived(HttpResponse response) {
+        if (!capturing) return;
+        this.response = response;
+        timing.responseHeaderReceived();
+        final HttpEntity entity = response.getEntity();
+        if (entity == null) return;
+        responseContentType = RestexEntities.contentType(entity);
+        if (capturePolicy.captureEntity(entity)) {
+            responseBody = newBuffer();
+        } else {
+            binaryResponse = RestexEntities.skippedHint(entity);
+        }
+    }
+
+    synchronized void responseContent(ByteBuffer data, int position, int length) { copy(data, position, length, responseBody); }
+
+    synchronized void responseCompleted() {
+        if (!capturing || response == null || !delivered.compareAndSet(false, true)) return;
+        try {
+            final RequestLine requestLine = request.getRequestLine();
+            target.requestUri(requestLine.getMethod(), requestLine.getUri());
+            for (Header header : request.getAllHeaders()) target.requestHeader(header.getName(), header.getValue());
+            if (binaryRequest != null) {
+                target.setBinaryRequest(binaryRequest);
+                target.requestEntity(null, requestContentType);
+            } else if (requestEnclosing) {
+                target.requestEntity(requestBody == null ? RestexEntities.EMPTY : bytes(requestBody), requestContentType);
+            }
+
+            final StatusLine statusLine = response.getStatusLine();
+            target.responseStatus(statusLine.getStatusCode(), statusLine.getReasonPhrase(), statusLine.getProtocolVersion().toString());
+            for (Header header : response.getAllHeaders()) target.responseHeader(header.getName(), header.getValue());
+            timing.responseReceived(responseBody == null ? 0 : responseBody.getTotalBytes());
+            target.exchangeTiming(timing);
+            if (binaryResponse != null) {
+                target.setBinaryResponse(binaryResponse);
+                target.responseEntity(null, responseContentType);
+            } else {
+                target.responseEntity(responseBody == null ? null : bytes(responseBody), responseContentType);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    synchronized void failed() {
+        delivered.set(true);
+        close();
+    }
+
+    // the spill threshold is the limit, so a capture never spills to disk on a reactor thread
+    private CaptureBuffer newBuffer() { return new CaptureBuffer(captureLimit, captureLimit); }
+
+    private void close() {
+        if (requestBody != null) requestBody.close();
+        if (responseBody != null) responseBody.close();
+    }
+
+    // these buffers never spill, so neither of these can actually fail
+    private static ByteBuffer bytes(CaptureBuffer buffer) {
+        try {
+            return buffer.toByteBuffer();
+        } catch (IOException e) {
+            throw new IllegalStateException("bytes: "+e, e);
+        }
+    }
+
+    private static void copy(ByteBuffer data, int position, int length, CaptureBuffer to) {
+        if (to == null || length <= 0) return;
+        final ByteBuffer bytes = data.duplicate();
+        bytes.limit(position + length).position(position);
+        try {
+            to.write(bytes);
+        } catch (IOException e) {
+            throw new IllegalStateException("copy: "+e, e);
+        }
+    }
+}
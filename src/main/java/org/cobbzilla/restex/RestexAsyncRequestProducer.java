@@ -0,0 +1,73 @@
+package org.cobbzilla.restex;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/** Tees the request a producer generates, and every byte it writes to the content encoder, into the exchange */
+class RestexAsyncRequestProducer implements HttpAsyncRequestProducer {
+
+    private final HttpAsyncRequestProducer delegate;
+    private final RestexAsyncExchange exchange;
+
+    RestexAsyncRequestProducer(HttpAsyncRequestProducer delegate, RestexAsyncExchange exchange) {
+        this.delegate = delegate;
+        this.exchange = exchange;
+    }
+
+    @Override public HttpHost getTarget() { return delegate.getTarget(); }
+
+    @Override public HttpRequest generateRequest() throws IOException, HttpException {
+        final HttpRequest request = delegate.generateRequest();
+        exchange.requestGenerated(request);
+        return request;
+    }
+
+    @Override public void produceContent(ContentEncoder encoder, IOControl ioControl) throws IOException {
+        delegate.produceContent(exchange.isCapturingRequest() ? new CapturingEncoder(encoder) : encoder, ioControl);
+    }
+
+    @Override public void requestCompleted(HttpContext context) {
+        exchange.requestCompleted(context);
+        delegate.requestCompleted(context);
+    }
+
+    @Override public void failed(Exception e) {
+        exchange.failed();
+        delegate.failed(e);
+    }
+
+    @Override public boolean isRepeatable() { return delegate.isRepeatable(); }
+
+    @Override public void resetRequest() throws IOException {
+        delegate.resetRequest();
+        exchange.resetRequest();
+    }
+
+    @Override public void close() throws IOException { delegate.close(); }
+
+    private class CapturingEncoder implements ContentEncoder {
+
+        private final ContentEncoder encoder;
+
+        CapturingEncoder(ContentEncoder encoder) { this.encoder = encoder; }
+
+        @Override public int write(ByteBuffer src) throws IOException {
+            final int position = src.position();
+            final int written = encoder.write(src);
+            exchange.requestContent(src, position, written);
+            return written;
+        }
+
+        @Override public void complete() throws IOException { encoder.complete(); }
+
+        @Override public boolean isCompleted() { return encoder.isCompleted(); }
+    }
+}
@@ -0,0 +1,75 @@
+package org.cobbzilla.restex;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Tees the response, and every byte the consumer reads from the content decoder, into the exchange.
+ * The exchange is handed to the target before the wrapped consumer completes, so it has been captured
+ * by the time the caller's future or callback sees the result.
+ */
+class RestexAsyncResponseConsumer<T> implements HttpAsyncResponseConsumer<T> {
+
+    private final HttpAsyncResponseConsumer<T> delegate;
+    private final RestexAsyncExchange exchange;
+
+    RestexAsyncResponseConsumer(HttpAsyncResponseConsumer<T> delegate, RestexAsyncExchange exchange) {
+        this.delegate = delegate;
+        this.exchange = exchange;
+    }
+
+    @Override public void responseReceived(HttpResponse response) throws IOException, HttpException {
+        exchange.responseReceived(response);
+        delegate.responseReceived(response);
+    }
+
+    @Override public void consumeContent(ContentDecoder decoder, IOControl ioControl) throws IOException {
+        delegate.consumeContent(exchange.isCapturingResponse() ? new CapturingDecoder(decoder) : decoder, ioControl);
+    }
+
+    @Override public void responseCompleted(HttpContext context) {
+        exchange.responseCompleted();
+        delegate.responseCompleted(context);
+    }
+
+    @Override public void failed(Exception e) {
+        exchange.failed();
+        delegate.failed(e);
+    }
+
+    @Override public Exception getException() { return delegate.getException(); }
+
+    @Override public T getResult() { return delegate.getResult(); }
+
+    @Override public boolean isDone() { return delegate.isDone(); }
+
+    @Override public boolean cancel() {
+        exchange.failed();
+        return delegate.cancel();
+    }
+
+    @Override public void close() throws IOException { delegate.close(); }
+
+    private class CapturingDecoder implements ContentDecoder {
+
+        private final ContentDecoder decoder;
+
+        CapturingDecoder(ContentDecoder decoder) { this.decoder = decoder; }
+
+        @Override public int read(ByteBuffer dst) throws IOException {
+            final int position = dst.position();
+            final int read = decoder.read(dst);
+            exchange.responseContent(dst, position, read);
+            return read;
+        }
+
+        @Override public boolean isCompleted() { return decoder.isCompleted(); }
+    }
+}
@@ -0,0 +1,15 @@
+package org.cobbzilla.restex;
+
+/**
+ * What a RestexClientConnectionFactory needs to know to wrap new connections.
+ */
+public interface RestexCaptureConfig {
+
+    public RestexCaptureTarget getTarget();
+
+    public boolean isStreaming();
+
+    public int getCaptureLimit();
+
+    public CapturePolicy getCapturePolicy();
+}
@@ -1,21 +1,59 @@
 package org.cobbzilla.restex;
 
+import org.apache.http.entity.ContentType;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public interface RestexCaptureTarget {
 
+    /**
+     * Called on the thread that is about to send a request. The returned target receives every callback
+     * for that exchange, even if some of them arrive on other threads. Return null to skip the exchange.
+     */
+    public default RestexCaptureTarget forExchange() { return this; }
+
     public void requestUri (String method, String uri);
 
     public void requestHeader(String name, String value);
 
     public void requestEntity(String entityData);
 
+    /**
+     * Receives the request entity exactly as it went over the wire. The default implementation
+     * flags binary media types and decodes everything else with the Content-Type charset.
+     */
+    public default void requestEntity(ByteBuffer entityData, ContentType contentType) {
+        if (entityData != null && RestexEntities.isBinary(contentType)) {
+            setBinaryRequest(RestexEntities.binaryHint(entityData, contentType));
+            requestEntity((String) null);
+        } else {
+            requestEntity(RestexEntities.decode(entityData, contentType));
+        }
+    }
+
     public void responseStatus(int statusCode, String reasonPhrase, String protocolVersion);
 
     public void responseHeader(String name, String value);
 
     public void responseEntity(String entityData);
 
+    /** Receives the response entity exactly as it came off the wire, see requestEntity(ByteBuffer, ContentType) */
+    public default void responseEntity(ByteBuffer entityData, ContentType contentType) {
+        if (entityData != null && RestexEntities.isBinary(contentType)) {
+            setBinaryResponse(RestexEntities.binaryHint(entityData, contentType));
+            responseEntity((String) null);
+        } else {
+            responseEntity(RestexEntities.decode(entityData, contentType));
+        }
+    }
+
+    /**
+     * Receives the phase timings and body sizes of the exchange, right before its response entity.
+     * Targets that do not keep timings can ignore this.
+     */
+    public default void exchangeTiming(ExchangeTiming timing) {}
+
     public void commit() throws IOException;
 
     public void setBinaryRequest(String hint);
@@ -5,12 +5,9 @@ import lombok.Delegate;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.*;
 import org.apache.http.conn.ManagedHttpClientConnection;
-import org.apache.http.entity.BasicHttpEntity;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.StringWriter;
+import java.io.InputStream;
 
 public class RestexClientConnection implements ManagedHttpClientConnection {
 
@@ -25,53 +22,130 @@ public class RestexClientConnection implements ManagedHttpClientConnection {
     private final ManagedHttpClientConnection delegate;
 
     private final RestexCaptureTarget target;
+    // when set, the settings below are read from it as each exchange starts, so a connection kept in a pool follows changes
+    private final RestexCaptureConfig config;
+    private boolean streaming;
+    private int captureLimit;
+    private CapturePolicy capturePolicy;
+
+    // the target for the exchange in progress, null if it is not being captured
+    private RestexCaptureTarget exchange;
+    private ExchangeTiming timing;
 
     public RestexClientConnection(ManagedHttpClientConnection connection, RestexCaptureTarget target) {
+        this(connection, target, false, CaptureBuffer.DEFAULT_CAPTURE_LIMIT, CapturePolicy.ALL);
+    }
+
+    public RestexClientConnection(ManagedHttpClientConnection connection, RestexCaptureTarget target,
+                                  boolean streaming, int captureLimit, CapturePolicy capturePolicy) {
         this.delegate = connection;
         this.target = target;
+        this.config = null;
+        this.streaming = streaming;
+        this.captureLimit = captureLimit;
+        this.capturePolicy = capturePolicy;
+    }
+
+    public RestexClientConnection(ManagedHttpClientConnection connection, RestexCaptureConfig config) {
+        this.delegate = connection;
+        this.target = config.getTarget();
+        this.config = config;
     }
 
     @Override
     public void sendRequestHeader(HttpRequest httpRequest) throws HttpException, IOException {
-        target.requestUri(httpRequest.getRequestLine().getMethod(), httpRequest.getRequestLine().getUri());
-        final Header[] headers = httpRequest.getAllHeaders();
-        for (Header header : headers) {
-            target.requestHeader(header.getName(), header.getValue());
+        if (config != null) {
+            streaming = config.isStreaming();
+            captureLimit = config.getCaptureLimit();
+            capturePolicy = config.getCapturePolicy();
+        }
+        exchange = capturePolicy.captureExchange(httpRequest) ? target.forExchange() : null;
+        timing = exchange == null ? null : ExchangeTiming.start();
+        if (exchange != null) {
+            exchange.requestUri(httpRequest.getRequestLine().getMethod(), httpRequest.getRequestLine().getUri());
+            final Header[] headers = httpRequest.getAllHeaders();
+            for (Header header : headers) {
+                exchange.requestHeader(header.getName(), header.getValue());
+            }
         }
         delegate.sendRequestHeader(httpRequest);
+        if (timing != null) timing.requestHeaderSent();
     }
 
     @Override
     public void sendRequestEntity(HttpEntityEnclosingRequest httpEntityEnclosingRequest) throws HttpException, IOException {
 
-        // Read the entire request into a String
-        StringWriter writer = new StringWriter();
+        final RestexCaptureTarget capture = exchange;
+        if (capture == null) {
+            delegate.sendRequestEntity(httpEntityEnclosingRequest);
+            return;
+        }
+        final ExchangeTiming timing = this.timing;
+
         final HttpEntity entity = httpEntityEnclosingRequest.getEntity();
-        final String entityData;
-        if (entity != null && entity.getContent() != null) {
-            @Cleanup final InputStreamReader in = new InputStreamReader(entity.getContent());
-            IOUtils.copyLarge(in, writer);
-            entityData = writer.toString();
-        } else {
-            entityData = "";
+        if (entity != null && !capturePolicy.captureEntity(entity)) {
+            capture.setBinaryRequest(RestexEntities.skippedHint(entity));
+            capture.requestEntity(null, RestexEntities.contentType(entity));
+            // nothing is kept, but the bytes are counted as they go out; the length may not be known up front
+            httpEntityEnclosingRequest.setEntity(new CapturingHttpEntity(entity, 0, buffer -> timing.requestSent(buffer.getTotalBytes())));
+            try {
+                delegate.sendRequestEntity(httpEntityEnclosingRequest);
+            } finally {
+                httpEntityEnclosingRequest.setEntity(entity);
+            }
+            return;
+        }
+
+        if (streaming) {
+            streamRequestEntity(httpEntityEnclosingRequest, capture, timing);
+            return;
         }
-        target.requestEntity(entityData);
 
-        // Re-create the entity since we already read the entire InputStream
-        httpEntityEnclosingRequest.setEntity(buildEntity(entityData));
+        long size = 0;
+        if (entity == null) {
+            capture.requestEntity(RestexEntities.EMPTY, null);
+
+        } else if (entity.isRepeatable()) {
+            // we can read it twice, so leave the entity alone
+            try (CaptureBuffer copy = new CaptureBuffer(Long.MAX_VALUE)) {
+                entity.writeTo(copy);
+                size = copy.getTotalBytes();
+                capture.requestEntity(copy.toByteBuffer(), RestexEntities.contentType(entity));
+            }
+
+        } else {
+            // Read the entire request, then serve the same bytes to the real connection
+            final CaptureBuffer copy = readFully(entity);
+            size = copy.getTotalBytes();
+            capture.requestEntity(copy.toByteBuffer(), RestexEntities.contentType(entity));
+            httpEntityEnclosingRequest.setEntity(new BufferedEntityWrapper(entity, copy));
+            try {
+                delegate.sendRequestEntity(httpEntityEnclosingRequest);
+            } finally {
+                // sent (or failed), either way the copy is not needed any more
+                copy.close();
+            }
+            timing.requestSent(size);
+            return;
+        }
 
         delegate.sendRequestEntity(httpEntityEnclosingRequest);
+        timing.requestSent(size);
     }
 
     @Override
     public HttpResponse receiveResponseHeader() throws HttpException, IOException {
         final HttpResponse httpResponse = delegate.receiveResponseHeader();
 
-        target.responseStatus(httpResponse.getStatusLine().getStatusCode(), httpResponse.getStatusLine().getReasonPhrase(), httpResponse.getStatusLine().getProtocolVersion().toString());
+        final RestexCaptureTarget capture = exchange;
+        if (capture == null) return httpResponse;
+
+        timing.responseHeaderReceived();
+        capture.responseStatus(httpResponse.getStatusLine().getStatusCode(), httpResponse.getStatusLine().getReasonPhrase(), httpResponse.getStatusLine().getProtocolVersion().toString());
 
         final Header[] headers = httpResponse.getAllHeaders();
         for (Header header : headers) {
-            target.responseHeader(header.getName(), header.getValue());
+            capture.responseHeader(header.getName(), header.getValue());
         }
         return httpResponse;
     }
@@ -81,28 +155,84 @@ public class RestexClientConnection implements ManagedHttpClientConnection {
 
         delegate.receiveResponseEntity(response);
 
-        // Read the entire response into a String
-        StringWriter writer = new StringWriter();
+        final RestexCaptureTarget capture = exchange;
+        if (capture == null) return;
+        final ExchangeTiming timing = this.timing;
+
         final HttpEntity entity = response.getEntity();
-        final String entityData;
-        if (entity != null && entity.getContent() != null) {
-            @Cleanup final InputStreamReader in = new InputStreamReader(entity.getContent());
-            IOUtils.copyLarge(in, writer);
-            entityData = writer.toString();
-        } else {
-            entityData = null;
+        if (entity != null && !capturePolicy.captureEntity(entity)) {
+            // nothing is kept, but the response is only received once the caller reaches EOF or closes the content;
+            // the bytes counted are the ones the caller read, what the connection discards on close is not seen
+            response.setEntity(new CapturingHttpEntity(entity, 0, buffer -> {
+                responseReceived(capture, timing, buffer.getTotalBytes());
+                capture.setBinaryResponse(RestexEntities.skippedHint(entity));
+                capture.responseEntity(null, RestexEntities.contentType(entity));
+            }));
+            return;
+        }
+
+        if (streaming) {
+            streamResponseEntity(response, capture, timing);
+            return;
+        }
+
+        // Read the entire response, then serve the same bytes to the caller
+        if (entity == null) {
+            responseReceived(capture, timing, 0);
+            capture.responseEntity(null, null);
+            return;
+        }
+        final CaptureBuffer copy = readFully(entity);
+        responseReceived(capture, timing, copy.getTotalBytes());
+        capture.responseEntity(copy.toByteBuffer(), RestexEntities.contentType(entity));
+        response.setEntity(new BufferedEntityWrapper(entity, copy));
+    }
+
+    private void streamRequestEntity(HttpEntityEnclosingRequest request, RestexCaptureTarget capture, ExchangeTiming timing) throws HttpException, IOException {
+        final HttpEntity entity = request.getEntity();
+        if (entity == null) {
+            capture.requestEntity(RestexEntities.EMPTY, null);
+            delegate.sendRequestEntity(request);
+            timing.requestSent(0);
+            return;
+        }
+        // the copy is handed to the target as soon as the wrapped entity has been written out
+        request.setEntity(new CapturingHttpEntity(entity, captureLimit, buffer -> {
+            timing.requestSent(buffer.getTotalBytes());
+            capture.requestEntity(buffer.toByteBuffer(), RestexEntities.contentType(entity));
+        }));
+        try {
+            delegate.sendRequestEntity(request);
+        } finally {
+            request.setEntity(entity);
+        }
+    }
+
+    private void streamResponseEntity(HttpResponse response, RestexCaptureTarget capture, ExchangeTiming timing) {
+        final HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            responseReceived(capture, timing, 0);
+            capture.responseEntity(null, null);
+            return;
         }
-        target.responseEntity(entityData);
+        // the copy is handed to the target when the caller reaches EOF or closes the content stream
+        response.setEntity(new CapturingHttpEntity(entity, captureLimit, buffer -> {
+            responseReceived(capture, timing, buffer.getTotalBytes());
+            capture.responseEntity(buffer.toByteBuffer(), RestexEntities.contentType(entity));
+        }));
+    }
 
-        // Re-create the entity since we already read the entire InputStream
-        response.setEntity(buildEntity(entityData));
+    private static void responseReceived(RestexCaptureTarget capture, ExchangeTiming timing, long bytes) {
+        timing.responseReceived(bytes);
+        capture.exchangeTiming(timing);
     }
 
-    private BasicHttpEntity buildEntity(String entityData) {
-        final BasicHttpEntity entity = new BasicHttpEntity();
-        entity.setContentLength(entityData == null ? 0 : entityData.length());
-        entity.setContent(new ByteArrayInputStream(entityData == null ? "".getBytes() : entityData.getBytes()));
-        return entity;
+    // large entities spill to disk instead of piling up on the heap
+    private CaptureBuffer readFully(HttpEntity entity) throws IOException {
+        final CaptureBuffer copy = new CaptureBuffer(Long.MAX_VALUE);
+        @Cleanup final InputStream in = entity.getContent();
+        if (in != null) IOUtils.copyLarge(in, copy);
+        return copy;
     }
 
 }
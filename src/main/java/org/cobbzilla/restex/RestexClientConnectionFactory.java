@@ -8,15 +8,15 @@ import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
 
 public class RestexClientConnectionFactory implements HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> {
 
-    private RestexClientConnectionManager connectionManager;
+    private RestexCaptureConfig connectionManager;
     private ManagedHttpClientConnectionFactory connectionFactory = new ManagedHttpClientConnectionFactory();
 
-    public RestexClientConnectionFactory(RestexClientConnectionManager connectionManager) {
+    public RestexClientConnectionFactory(RestexCaptureConfig connectionManager) {
         this.connectionManager = connectionManager;
     }
 
     @Override
     public ManagedHttpClientConnection create(HttpRoute route, ConnectionConfig config) {
-        return new RestexClientConnection(connectionFactory.create(route, config), connectionManager.getTarget());
+        return new RestexClientConnection(connectionFactory.create(route, config), connectionManager);
     }
 }
@@ -2,6 +2,7 @@ package org.cobbzilla.restex;
 
 import lombok.Delegate;
 import lombok.Getter;
+import lombok.Setter;
 import org.apache.http.client.HttpClient;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
@@ -12,12 +13,17 @@ import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.conn.BasicHttpClientConnectionManager;
 
-public class RestexClientConnectionManager implements HttpClientConnectionManager {
+public class RestexClientConnectionManager implements HttpClientConnectionManager, RestexCaptureConfig {
 
     @Delegate private final BasicHttpClientConnectionManager delegate;
     @Getter private final RestexCaptureTarget target;
 
-    private static Registry<ConnectionSocketFactory> getDefaultRegistry() {
+    // when streaming, entities are teed to the target as they are consumed instead of being read up front
+    @Getter @Setter private boolean streaming = false;
+    @Getter @Setter private int captureLimit = CaptureBuffer.DEFAULT_CAPTURE_LIMIT;
+    @Getter @Setter private CapturePolicy capturePolicy = CapturePolicy.ALL;
+
+    static Registry<ConnectionSocketFactory> getDefaultRegistry() {
         return RegistryBuilder.<ConnectionSocketFactory>create()
                 .register("http", PlainConnectionSocketFactory.getSocketFactory())
                 .register("https", SSLConnectionSocketFactory.getSocketFactory())
@@ -30,6 +36,10 @@ public class RestexClientConnectionManager implements HttpClientConnectionManage
     }
 
     public HttpClient getHttpClient () {
-        return HttpClientBuilder.create().setConnectionManager(new RestexClientConnectionManager(target)).build();
+        final RestexClientConnectionManager manager = new RestexClientConnectionManager(target);
+        manager.setStreaming(streaming);
+        manager.setCaptureLimit(captureLimit);
+        manager.setCapturePolicy(capturePolicy);
+        return HttpClientBuilder.create().setConnectionManager(manager).build();
     }
 }
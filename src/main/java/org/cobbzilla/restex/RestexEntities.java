@@ -0,0 +1,135 @@
+package org.cobbzilla.restex;
+
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+public class RestexEntities {
+
+    public static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    private static final String[] TEXT_SUBTYPE_HINTS = {"json", "xml", "html", "javascript", "x-www-form-urlencoded", "yaml", "csv"};
+
+    public static ContentType contentType(HttpEntity entity) {
+        return entity == null ? null : ContentType.getLenient(entity);
+    }
+
+    /** An entity without a Content-Type is assumed to be text, that is how restex always treated it. */
+    public static boolean isText(ContentType contentType) {
+        if (contentType == null) return true;
+        final String mimeType = contentType.getMimeType().toLowerCase();
+        if (mimeType.startsWith("text/")) return true;
+        for (String hint : TEXT_SUBTYPE_HINTS) {
+            if (mimeType.contains(hint)) return true;
+        }
+        return false;
+    }
+
+    public static boolean isBinary(ContentType contentType) { return !isText(contentType); }
+
+    public static Charset charset(ContentType contentType) {
+        return contentType == null || contentType.getCharset() == null ? StandardCharsets.UTF_8 : contentType.getCharset();
+    }
+
+    public static String decode(ByteBuffer data, ContentType contentType) {
+        return data == null ? null : charset(contentType).decode(data.duplicate()).toString();
+    }
+
+    /** Decodes at most maxBytes of the entity, noting how much was left out */
+    public static String decodePreview(ByteBuffer data, ContentType contentType, int maxBytes) {
+        if (data == null || data.remaining() <= maxBytes) return decode(data, contentType);
+        final ByteBuffer preview = data.duplicate();
+        preview.limit(preview.position() + maxBytes);
+        return decode(preview, contentType) + "\n... (" + (data.remaining() - maxBytes) + " more bytes)";
+    }
+
+    /** @return true for no Content-Encoding at all, or identity */
+    public static boolean isIdentity(String contentEncoding) {
+        return contentEncoding == null || contentEncoding.trim().isEmpty() || contentEncoding.trim().equalsIgnoreCase("identity");
+    }
+
+    /** restex can decode gzip and deflate itself; anything else (br, zstd, stacked encodings) is only kept as bytes */
+    public static boolean isDecodable(String contentEncoding) {
+        if (isIdentity(contentEncoding)) return true;
+        switch (contentEncoding.trim().toLowerCase(Locale.ROOT)) {
+            case "gzip": case "x-gzip": case "deflate": return true;
+            default: return false;
+        }
+    }
+
+    /** @return a stream of the bytes with their Content-Encoding undone, reading from its own view of the buffer */
+    public static InputStream decodedStream(ByteBuffer data, String contentEncoding) throws IOException {
+        final InputStream in = new ByteBufferBackedInputStream(data.duplicate());
+        if (isIdentity(contentEncoding)) return in;
+        switch (contentEncoding.trim().toLowerCase(Locale.ROOT)) {
+            case "gzip": case "x-gzip":
+                return new GZIPInputStream(in);
+            case "deflate":
+                // should be zlib-wrapped, but some servers send raw deflate data
+                final PushbackInputStream peek = new PushbackInputStream(in, 2);
+                final int cmf = peek.read();
+                final int flg = cmf == -1 ? -1 : peek.read();
+                if (flg != -1) peek.unread(flg);
+                if (cmf != -1) peek.unread(cmf);
+                final boolean zlib = flg != -1 && (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+                return new InflaterInputStream(peek, new Inflater(!zlib));
+            default:
+                throw new IllegalArgumentException("decodedStream: can't decode Content-Encoding: "+contentEncoding);
+        }
+    }
+
+    /**
+     * Decodes at most maxBytes of the entity after undoing its Content-Encoding. Only that much is ever inflated,
+     * so a small compressed body that expands to something huge costs no more than an uncompressed one.
+     */
+    public static String decodePreview(ByteBuffer data, ContentType contentType, String contentEncoding, int maxBytes) {
+        if (data == null || isIdentity(contentEncoding)) return decodePreview(data, contentType, maxBytes);
+        if (!isDecodable(contentEncoding)) return encodedHint(data, contentType, contentEncoding);
+        final ByteArrayOutputStream decoded = new ByteArrayOutputStream((int) Math.min(maxBytes + 1L, Math.max(256L, data.remaining() * 4L)));
+        String problem = null;
+        try (InputStream in = decodedStream(data, contentEncoding)) {
+            final byte[] chunk = new byte[8192];
+            int n;
+            while (decoded.size() <= maxBytes
+                    && (n = in.read(chunk, 0, (int) Math.min(chunk.length, maxBytes + 1L - decoded.size()))) != -1) {
+                decoded.write(chunk, 0, n);
+            }
+        } catch (IOException e) {
+            // a copy cut short by the capture limit ends mid-stream, show what could be decoded
+            problem = e.getMessage();
+        }
+        final byte[] bytes = decoded.toByteArray();
+        final String text = new String(bytes, 0, Math.min(bytes.length, maxBytes), charset(contentType));
+        if (bytes.length > maxBytes) return text + "\n... (more, " + data.remaining() + " bytes " + contentEncoding.trim() + "-encoded in all)";
+        if (problem != null) return text + "\n... (could not decode the rest of " + data.remaining() + " " + contentEncoding.trim() + "-encoded bytes: " + problem + ")";
+        return text;
+    }
+
+    public static String encodedHint(ByteBuffer data, ContentType contentType, String contentEncoding) {
+        return binaryHint(data, contentType) + ", " + contentEncoding.trim() + "-encoded (not decodable)";
+    }
+
+    public static String skippedHint(HttpEntity entity) {
+        final ContentType contentType = contentType(entity);
+        final long length = entity.getContentLength();
+        return (contentType == null ? "unknown type" : contentType.getMimeType())
+                + (length < 0 ? "" : ", " + length + " bytes") + " (not captured)";
+    }
+
+    public static String binaryHint(ByteBuffer data, ContentType contentType) {
+        final String mimeType = contentType == null ? "unknown type" : contentType.getMimeType();
+        return mimeType + ", " + (data == null ? 0 : data.remaining()) + " bytes";
+    }
+}
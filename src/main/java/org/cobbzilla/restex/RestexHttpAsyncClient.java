@@ -0,0 +1,57 @@
+package org.cobbzilla.restex;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+
+/**
+ * The non-blocking counterpart of RestexClientConnectionManager: an HttpAsyncClient that captures every exchange
+ * it executes. Bodies are copied as the I/O reactor moves them through the content encoder and decoder, up to
+ * captureLimit bytes each and only in memory, and the target receives each exchange once its response is complete.
+ *
+ * The target is resolved (forExchange) on the thread that calls execute, so recording sessions work the same
+ * as with the blocking client even though the I/O happens on reactor threads.
+ */
+public class RestexHttpAsyncClient extends CloseableHttpAsyncClient {
+
+    private final CloseableHttpAsyncClient delegate;
+
+    @Getter private final RestexCaptureTarget target;
+    @Getter @Setter private int captureLimit = CaptureBuffer.DEFAULT_CAPTURE_LIMIT;
+    @Getter @Setter private CapturePolicy capturePolicy = CapturePolicy.ALL;
+
+    public RestexHttpAsyncClient(RestexCaptureTarget target) { this(HttpAsyncClients.createDefault(), target); }
+
+    public RestexHttpAsyncClient(CloseableHttpAsyncClient delegate, RestexCaptureTarget target) {
+        this.delegate = delegate;
+        this.target = target;
+    }
+
+    @Override public boolean isRunning() { return delegate.isRunning(); }
+
+    @Override public void start() { delegate.start(); }
+
+    @Override public void close() throws IOException { delegate.close(); }
+
+    @Override
+    public <T> Future<T> execute(HttpAsyncRequestProducer requestProducer,
+                                 HttpAsyncResponseConsumer<T> responseConsumer,
+                                 HttpContext context,
+                                 FutureCallback<T> callback) {
+        final RestexCaptureTarget exchangeTarget = target.forExchange();
+        if (exchangeTarget == null) return delegate.execute(requestProducer, responseConsumer, context, callback);
+
+        final RestexAsyncExchange exchange = new RestexAsyncExchange(exchangeTarget, capturePolicy, captureLimit);
+        return delegate.execute(new RestexAsyncRequestProducer(requestProducer, exchange),
+                                new RestexAsyncResponseConsumer<>(responseConsumer, exchange),
+                                context, callback);
+    }
+}
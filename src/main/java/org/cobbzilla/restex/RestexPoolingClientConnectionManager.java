@@ -0,0 +1,104 @@
+package org.cobbzilla.restex;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A connection manager that keeps a pool of capturing connections, so that many threads can share one
+ * HttpClient without serializing on a single socket. The target will be called from all of those threads,
+ * so it must be safe for concurrent use. Pooled connections read streaming, captureLimit and capturePolicy from
+ * here at the start of each exchange, so changing them takes effect for connections already in the pool.
+ */
+public class RestexPoolingClientConnectionManager implements HttpClientConnectionManager, RestexCaptureConfig, Closeable {
+
+    public static final int DEFAULT_MAX_TOTAL = 50;
+    public static final int DEFAULT_MAX_PER_ROUTE = 20;
+
+    private final PoolingHttpClientConnectionManager delegate;
+    @Getter private final RestexCaptureTarget target;
+
+    @Getter @Setter private boolean streaming = false;
+    @Getter @Setter private int captureLimit = CaptureBuffer.DEFAULT_CAPTURE_LIMIT;
+    @Getter @Setter private CapturePolicy capturePolicy = CapturePolicy.ALL;
+
+    private volatile CloseableHttpClient httpClient;
+
+    public RestexPoolingClientConnectionManager(RestexCaptureTarget target) {
+        this(target, DEFAULT_MAX_TOTAL, DEFAULT_MAX_PER_ROUTE);
+    }
+
+    public RestexPoolingClientConnectionManager(RestexCaptureTarget target, int maxTotal, int maxPerRoute) {
+        this.delegate = new PoolingHttpClientConnectionManager(RestexClientConnectionManager.getDefaultRegistry(), new RestexClientConnectionFactory(this));
+        this.delegate.setMaxTotal(maxTotal);
+        this.delegate.setDefaultMaxPerRoute(maxPerRoute);
+        this.target = target;
+    }
+
+    @Override public ConnectionRequest requestConnection(HttpRoute route, Object state) { return delegate.requestConnection(route, state); }
+
+    @Override public void releaseConnection(HttpClientConnection conn, Object newState, long validDuration, TimeUnit timeUnit) {
+        delegate.releaseConnection(conn, newState, validDuration, timeUnit);
+    }
+
+    @Override public void connect(HttpClientConnection conn, HttpRoute route, int connectTimeout, HttpContext context) throws IOException {
+        delegate.connect(conn, route, connectTimeout, context);
+    }
+
+    @Override public void upgrade(HttpClientConnection conn, HttpRoute route, HttpContext context) throws IOException {
+        delegate.upgrade(conn, route, context);
+    }
+
+    @Override public void routeComplete(HttpClientConnection conn, HttpRoute route, HttpContext context) throws IOException {
+        delegate.routeComplete(conn, route, context);
+    }
+
+    @Override public void closeIdleConnections(long idleTime, TimeUnit timeUnit) { delegate.closeIdleConnections(idleTime, timeUnit); }
+    @Override public void closeExpiredConnections() { delegate.closeExpiredConnections(); }
+    @Override public void shutdown() { delegate.shutdown(); }
+
+    public int getMaxTotal () { return delegate.getMaxTotal(); }
+    public void setMaxTotal (int max) { delegate.setMaxTotal(max); }
+
+    public int getDefaultMaxPerRoute () { return delegate.getDefaultMaxPerRoute(); }
+    public void setDefaultMaxPerRoute (int max) { delegate.setDefaultMaxPerRoute(max); }
+
+    public void setMaxPerRoute (HttpRoute route, int max) { delegate.setMaxPerRoute(route, max); }
+
+    public PoolStats getTotalStats () { return delegate.getTotalStats(); }
+
+    /** @return the same client every time, backed by this pool */
+    public HttpClient getHttpClient () {
+        if (httpClient == null) {
+            synchronized (this) {
+                if (httpClient == null) {
+                    httpClient = HttpClientBuilder.create().setConnectionManager(this).build();
+                }
+            }
+        }
+        return httpClient;
+    }
+
+    @Override public void close() throws IOException {
+        synchronized (this) {
+            if (httpClient != null) {
+                httpClient.close();
+                httpClient = null;
+            }
+        }
+        delegate.shutdown();
+    }
+}
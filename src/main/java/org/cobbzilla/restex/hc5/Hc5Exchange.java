@@ -0,0 +1,179 @@
+package org.cobbzilla.restex.hc5;
+
+import org.apache.commons.io.output.TeeOutputStream;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.ProtocolVersion;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.cobbzilla.restex.CaptureBuffer;
+import org.cobbzilla.restex.CaptureInputStream;
+import org.cobbzilla.restex.CapturePolicy;
+import org.cobbzilla.restex.ExchangeTiming;
+import org.cobbzilla.restex.RestexCaptureTarget;
+import org.cobbzilla.restex.RestexEntities;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * What restex has seen of one HttpClient 5 exchange. Nothing in here belongs to a connection: with HTTP/2
+ * many exchanges share one, so each gets its own copy of its request and response, at most captureLimit
+ * bytes of each body in memory, and the target gets the whole exchange at once in deliver(). The request headers
+ * are read then too, the transport adds some of its own (Host, Content-Length...) to the request as it sends it.
+ *
+ * Entities that the policy skips still get a buffer, with a limit of 0, so their sizes are counted.
+ */
+class Hc5Exchange {
+
+    private final RestexCaptureTarget target;
+    private final CapturePolicy capturePolicy;
+    private final int captureLimit;
+    private final AtomicBoolean delivered = new AtomicBoolean(false);
+
+    private ExchangeTiming timing;
+
+    private HttpRequest request;
+    private ContentType requestContentType;
+    private CaptureBuffer requestBody;
+    private String binaryRequest;
+
+    private int statusCode;
+    private String reasonPhrase;
+    private String protocolVersion;
+    private Header[] responseHeaders;
+    private ContentType responseContentType;
+    private CaptureBuffer responseBody;
+    private String binaryResponse;
+
+    Hc5Exchange(RestexCaptureTarget target, CapturePolicy capturePolicy, int captureLimit) {
+        this.target = target;
+        this.capturePolicy = capturePolicy;
+        this.captureLimit = captureLimit;
+    }
+
+    /** Starts over with a new attempt: a retry or redirect of the exchange replaces everything seen before */
+    synchronized void requestStarted(HttpRequest request, EntityDetails entity) {
+        close();
+        responseHeaders = null;
+        responseContentType = null;
+        responseBody = null;
+        binaryResponse = null;
+
+        timing = ExchangeTiming.start();
+        timing.requestHeaderSent(); // this is right in front of the transport, the header is the next thing sent
+        this.request = request;
+        requestContentType = null;
+        binaryRequest = null;
+        requestBody = entity == null ? null : newBuffer(entity, true);
+        if (entity != null) requestContentType = RestexEntities.contentType(Hc5Messages.entity(entity));
+    }
+
+    synchronized void requestContent(ByteBuffer data, int position, int length) { copy(data, position, length, requestBody); }
+
+    /** For blocking writes: the stream the request entity should be written to, so that it is copied */
+    synchronized OutputStream requestStream(OutputStream out) { return requestBody == null ? out : new TeeOutputStream(out, requestBody); }
+
+    synchronized void requestSent() { timing.requestSent(requestBody == null ? 0 : requestBody.getTotalBytes()); }
+
+    synchronized void responseReceived(HttpResponse response, EntityDetails entity, ProtocolVersion contextVersion) {
+        timing.responseHeaderReceived();
+        statusCode = response.getCode();
+        reasonPhrase = response.getReasonPhrase();
+        // HTTP/2 responses carry no version of their own
+        final ProtocolVersion version = response.getVersion() != null ? response.getVersion() : contextVersion;
+        protocolVersion = version == null ? null : version.toString();
+        responseHeaders = response.getHeaders();
+        if (entity == null) return;
+        responseContentType = RestexEntities.contentType(Hc5Messages.entity(entity));
+        responseBody = newBuffer(entity, false);
+    }
+
+    synchronized void responseContent(ByteBuffer data, int position, int length) { copy(data, position, length, responseBody); }
+
+    /** For blocking reads: the stream the response entity should be read from, done is called at EOF or close */
+    synchronized InputStream responseStream(InputStream in, CaptureInputStream.Listener done) {
+        return new CaptureInputStream(in, responseBody, done);
+    }
+
+    synchronized void responseCompleted() {
+        if (timing != null && timing.getResponseReceived() == -1) timing.responseReceived(responseBody == null ? 0 : responseBody.getTotalBytes());
+    }
+
+    /** Hands the exchange to the target, if it got as far as a response. Only the first call does anything. */
+    synchronized void deliver() {
+        if (responseHeaders == null || !delivered.compareAndSet(false, true)) {
+            close();
+            return;
+        }
+        try {
+            target.requestUri(request.getMethod(), request.getRequestUri());
+            for (Header header : request.getHeaders()) target.requestHeader(header.getName(), header.getValue());
+            if (binaryRequest != null) {
+                target.setBinaryRequest(binaryRequest);
+                target.requestEntity(null, requestContentType);
+            } else if (requestBody != null) {
+                target.requestEntity(bytes(requestBody), requestContentType);
+            }
+
+            target.responseStatus(statusCode, reasonPhrase, protocolVersion);
+            for (Header header : responseHeaders) target.responseHeader(header.getName(), header.getValue());
+            target.exchangeTiming(timing);
+            if (binaryResponse != null) {
+                target.setBinaryResponse(binaryResponse);
+                target.responseEntity(null, responseContentType);
+            } else {
+                target.responseEntity(responseBody == null ? null : bytes(responseBody), responseContentType);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    synchronized void discard() {
+        delivered.set(true);
+        close();
+    }
+
+    // the spill threshold is the limit, so a capture never spills to disk on a reactor thread
+    private CaptureBuffer newBuffer(EntityDetails entity, boolean request) {
+        final HttpEntity adapted = Hc5Messages.entity(entity);
+        if (capturePolicy.captureEntity(adapted)) return new CaptureBuffer(captureLimit, captureLimit);
+        if (request) {
+            binaryRequest = RestexEntities.skippedHint(adapted);
+        } else {
+            binaryResponse = RestexEntities.skippedHint(adapted);
+        }
+        return new CaptureBuffer(0, 0);
+    }
+
+    private void close() {
+        if (requestBody != null) requestBody.close();
+        if (responseBody != null) responseBody.close();
+    }
+
+    // these buffers never spill, so neither of these can actually fail
+    private static ByteBuffer bytes(CaptureBuffer buffer) {
+        try {
+            return buffer.toByteBuffer();
+        } catch (IOException e) {
+            throw new IllegalStateException("bytes: "+e, e);
+        }
+    }
+
+    private static void copy(ByteBuffer data, int position, int length, CaptureBuffer to) {
+        if (to == null || length <= 0) return;
+        final ByteBuffer bytes = data.duplicate();
+        bytes.limit(position + length).position(position);
+        try {
+            to.write(bytes);
+        } catch (IOException e) {
+            throw new IllegalStateException("copy: "+e, e);
+        }
+    }
+}
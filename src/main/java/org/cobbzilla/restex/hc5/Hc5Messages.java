@@ -0,0 +1,29 @@
+package org.cobbzilla.restex.hc5;
+
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpRequest;
+
+/**
+ * CapturePolicy and RestexEntities speak httpcore 4. These are just enough of an HttpClient 5 request
+ * or entity, as httpcore 4 messages, for them to work with: the request line, headers and entity metadata.
+ */
+class Hc5Messages {
+
+    static org.apache.http.HttpRequest request(HttpRequest request) {
+        final BasicHttpRequest adapted = new BasicHttpRequest(request.getMethod(), request.getRequestUri());
+        for (Header header : request.getHeaders()) adapted.addHeader(header.getName(), header.getValue());
+        return adapted;
+    }
+
+    static org.apache.http.HttpEntity entity(EntityDetails details) {
+        final BasicHttpEntity adapted = new BasicHttpEntity();
+        adapted.setContentType(details.getContentType());
+        adapted.setContentEncoding(details.getContentEncoding());
+        adapted.setContentLength(details.getContentLength());
+        adapted.setChunked(details.isChunked());
+        return adapted;
+    }
+}
@@ -0,0 +1,254 @@
+package org.cobbzilla.restex.hc5;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.apache.hc.client5.http.async.AsyncExecCallback;
+import org.apache.hc.client5.http.async.AsyncExecChain;
+import org.apache.hc.client5.http.async.AsyncExecChainHandler;
+import org.apache.hc.client5.http.impl.ChainElement;
+import org.apache.hc.client5.http.impl.async.H2AsyncClientBuilder;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClientBuilder;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.nio.AsyncDataConsumer;
+import org.apache.hc.core5.http.nio.AsyncEntityProducer;
+import org.apache.hc.core5.http.nio.CapacityChannel;
+import org.apache.hc.core5.http.nio.DataStreamChannel;
+import org.cobbzilla.restex.CaptureBuffer;
+import org.cobbzilla.restex.CapturePolicy;
+import org.cobbzilla.restex.RestexCaptureTarget;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Captures the exchanges of an async HttpClient 5, over HTTP/1.1 or HTTP/2. With HTTP/2 many exchanges are
+ * multiplexed over one connection, so everything is kept per exchange (one stream), by the client's exchange id:
+ *
+ *     CloseableHttpAsyncClient client = new RestexAsyncExecChainHandler(apiDocs).addTo(H2AsyncClients.custom()).build();
+ *
+ * The handler goes in twice. At the head of the chain it resolves the target (forExchange) on the thread that
+ * called execute, and in front of the transport it copies each attempt as the reactor moves it, at most captureLimit
+ * bytes of each body in memory. The target gets the last attempt of each exchange (the one whose response reaches
+ * the caller), right before the caller's consumer sees the end of the response.
+ */
+public class RestexAsyncExecChainHandler implements AsyncExecChainHandler {
+
+    public static final String NAME = "restex";
+    public static final String TRANSPORT_NAME = "restex-transport";
+
+    @Getter private final RestexCaptureTarget target;
+    @Getter @Setter private int captureLimit = CaptureBuffer.DEFAULT_CAPTURE_LIMIT;
+    @Getter @Setter private CapturePolicy capturePolicy = CapturePolicy.ALL;
+
+    private final Map<String, Hc5Exchange> inFlight = new ConcurrentHashMap<>();
+    private final AsyncExecChainHandler transport = this::executeTransport;
+
+    public RestexAsyncExecChainHandler(RestexCaptureTarget target) { this.target = target; }
+
+    public HttpAsyncClientBuilder addTo(HttpAsyncClientBuilder builder) {
+        return builder.addExecInterceptorFirst(NAME, this)
+                .addExecInterceptorBefore(ChainElement.MAIN_TRANSPORT.name(), TRANSPORT_NAME, transport);
+    }
+
+    public H2AsyncClientBuilder addTo(H2AsyncClientBuilder builder) {
+        return builder.addExecInterceptorFirst(NAME, this)
+                .addExecInterceptorBefore(ChainElement.MAIN_TRANSPORT.name(), TRANSPORT_NAME, transport);
+    }
+
+    /** @return the ids of the exchanges being captured right now */
+    public Set<String> getInFlight() { return inFlight.keySet(); }
+
+    @Override
+    public void execute(HttpRequest request, AsyncEntityProducer entityProducer, AsyncExecChain.Scope scope,
+                        AsyncExecChain chain, AsyncExecCallback callback) throws HttpException, IOException {
+        final RestexCaptureTarget capture = capturePolicy.captureExchange(Hc5Messages.request(request)) ? target.forExchange() : null;
+        if (capture == null) {
+            chain.proceed(request, entityProducer, scope, callback);
+            return;
+        }
+
+        final String exchangeId = scope.exchangeId;
+        final Hc5Exchange exchange = new Hc5Exchange(capture, capturePolicy, captureLimit);
+        inFlight.put(exchangeId, exchange);
+        try {
+            chain.proceed(request, entityProducer, scope, new AsyncExecCallback() {
+                // only the response that reaches the caller gets here, redirects and retries are handled further down
+                @Override public AsyncDataConsumer handleResponse(HttpResponse response, EntityDetails entityDetails) throws HttpException, IOException {
+                    if (entityDetails == null) {
+                        deliver(exchangeId, exchange);
+                        return callback.handleResponse(response, null);
+                    }
+                    final AsyncDataConsumer consumer = callback.handleResponse(response, entityDetails);
+                    return consumer == null ? null : new DeliveringDataConsumer(consumer, exchangeId, exchange);
+                }
+
+                @Override public void handleInformationResponse(HttpResponse response) throws HttpException, IOException {
+                    callback.handleInformationResponse(response);
+                }
+
+                @Override public void completed() {
+                    deliver(exchangeId, exchange); // in case the caller's consumer never saw the response end
+                    callback.completed();
+                }
+
+                @Override public void failed(Exception cause) {
+                    inFlight.remove(exchangeId);
+                    exchange.discard();
+                    callback.failed(cause);
+                }
+            });
+        } catch (HttpException | IOException | RuntimeException e) {
+            inFlight.remove(exchangeId);
+            exchange.discard();
+            throw e;
+        }
+    }
+
+    private void deliver(String exchangeId, Hc5Exchange exchange) {
+        inFlight.remove(exchangeId);
+        exchange.responseCompleted();
+        exchange.deliver();
+    }
+
+    private void executeTransport(HttpRequest request, AsyncEntityProducer entityProducer, AsyncExecChain.Scope scope,
+                                  AsyncExecChain chain, AsyncExecCallback callback) throws HttpException, IOException {
+        final Hc5Exchange exchange = inFlight.get(scope.exchangeId);
+        if (exchange == null) {
+            chain.proceed(request, entityProducer, scope, callback);
+            return;
+        }
+
+        exchange.requestStarted(request, entityProducer);
+        chain.proceed(request, entityProducer == null ? null : new CapturingEntityProducer(entityProducer, exchange), scope, new AsyncExecCallback() {
+            @Override public AsyncDataConsumer handleResponse(HttpResponse response, EntityDetails entityDetails) throws HttpException, IOException {
+                exchange.responseReceived(response, entityDetails, scope.clientContext.getProtocolVersion());
+                final AsyncDataConsumer consumer = callback.handleResponse(response, entityDetails);
+                return consumer == null ? null : new CapturingDataConsumer(consumer, exchange);
+            }
+
+            @Override public void handleInformationResponse(HttpResponse response) throws HttpException, IOException {
+                callback.handleInformationResponse(response);
+            }
+
+            @Override public void completed() {
+                exchange.responseCompleted();
+                callback.completed();
+            }
+
+            @Override public void failed(Exception cause) { callback.failed(cause); }
+        });
+    }
+
+    private static class CapturingEntityProducer implements AsyncEntityProducer {
+
+        private final AsyncEntityProducer delegate;
+        private final Hc5Exchange exchange;
+        private CapturingChannel channel;
+
+        CapturingEntityProducer(AsyncEntityProducer delegate, Hc5Exchange exchange) {
+            this.delegate = delegate;
+            this.exchange = exchange;
+        }
+
+        @Override public void produce(DataStreamChannel channel) throws IOException {
+            if (this.channel == null || this.channel.channel != channel) this.channel = new CapturingChannel(channel, exchange);
+            delegate.produce(this.channel);
+        }
+
+        @Override public int available() { return delegate.available(); }
+        @Override public boolean isRepeatable() { return delegate.isRepeatable(); }
+        @Override public void failed(Exception cause) { delegate.failed(cause); }
+        @Override public void releaseResources() { delegate.releaseResources(); }
+
+        @Override public long getContentLength() { return delegate.getContentLength(); }
+        @Override public String getContentType() { return delegate.getContentType(); }
+        @Override public String getContentEncoding() { return delegate.getContentEncoding(); }
+        @Override public boolean isChunked() { return delegate.isChunked(); }
+        @Override public Set<String> getTrailerNames() { return delegate.getTrailerNames(); }
+    }
+
+    private static class CapturingChannel implements DataStreamChannel {
+
+        private final DataStreamChannel channel;
+        private final Hc5Exchange exchange;
+
+        CapturingChannel(DataStreamChannel channel, Hc5Exchange exchange) {
+            this.channel = channel;
+            this.exchange = exchange;
+        }
+
+        @Override public void requestOutput() { channel.requestOutput(); }
+
+        @Override public int write(ByteBuffer src) throws IOException {
+            final int position = src.position();
+            final int written = channel.write(src);
+            exchange.requestContent(src, position, written);
+            return written;
+        }
+
+        @Override public void endStream() throws IOException {
+            channel.endStream();
+            exchange.requestSent();
+        }
+
+        @Override public void endStream(List<? extends Header> trailers) throws IOException {
+            channel.endStream(trailers);
+            exchange.requestSent();
+        }
+    }
+
+    private class DeliveringDataConsumer implements AsyncDataConsumer {
+
+        private final AsyncDataConsumer delegate;
+        private final String exchangeId;
+        private final Hc5Exchange exchange;
+
+        DeliveringDataConsumer(AsyncDataConsumer delegate, String exchangeId, Hc5Exchange exchange) {
+            this.delegate = delegate;
+            this.exchangeId = exchangeId;
+            this.exchange = exchange;
+        }
+
+        @Override public void updateCapacity(CapacityChannel capacityChannel) throws IOException { delegate.updateCapacity(capacityChannel); }
+
+        @Override public void consume(ByteBuffer src) throws IOException { delegate.consume(src); }
+
+        @Override public void streamEnd(List<? extends Header> trailers) throws HttpException, IOException {
+            deliver(exchangeId, exchange);
+            delegate.streamEnd(trailers);
+        }
+
+        @Override public void releaseResources() { delegate.releaseResources(); }
+    }
+
+    private static class CapturingDataConsumer implements AsyncDataConsumer {
+
+        private final AsyncDataConsumer delegate;
+        private final Hc5Exchange exchange;
+
+        CapturingDataConsumer(AsyncDataConsumer delegate, Hc5Exchange exchange) {
+            this.delegate = delegate;
+            this.exchange = exchange;
+        }
+
+        @Override public void updateCapacity(CapacityChannel capacityChannel) throws IOException { delegate.updateCapacity(capacityChannel); }
+
+        // copied before the consumer sees it, it does not have to leave the position where the data ended
+        @Override public void consume(ByteBuffer src) throws IOException {
+            exchange.responseContent(src, src.position(), src.remaining());
+            delegate.consume(src);
+        }
+
+        @Override public void streamEnd(List<? extends Header> trailers) throws HttpException, IOException { delegate.streamEnd(trailers); }
+
+        @Override public void releaseResources() { delegate.releaseResources(); }
+    }
+}
@@ -0,0 +1,114 @@
+package org.cobbzilla.restex.hc5;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.apache.commons.io.IOUtils;
+import org.apache.hc.client5.http.classic.ExecChain;
+import org.apache.hc.client5.http.classic.ExecChainHandler;
+import org.apache.hc.client5.http.impl.ChainElement;
+import org.apache.hc.client5.http.impl.classic.HttpClientBuilder;
+import org.apache.hc.core5.http.ClassicHttpRequest;
+import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.io.entity.HttpEntityWrapper;
+import org.cobbzilla.restex.CaptureBuffer;
+import org.cobbzilla.restex.CapturePolicy;
+import org.cobbzilla.restex.RestexCaptureTarget;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Captures the exchanges of a classic (blocking) HttpClient 5. The handler sits right in front of the
+ * transport, so every attempt is captured on the thread that sends it, with the headers that went out.
+ * Bodies are copied as they are written and read, up to captureLimit bytes each:
+ *
+ *     CloseableHttpClient client = new RestexExecChainHandler(apiDocs).addTo(HttpClients.custom()).build();
+ *
+ * The response is handed to the target once the caller has read its entity, or closed it.
+ */
+public class RestexExecChainHandler implements ExecChainHandler {
+
+    public static final String NAME = "restex";
+
+    @Getter private final RestexCaptureTarget target;
+    @Getter @Setter private int captureLimit = CaptureBuffer.DEFAULT_CAPTURE_LIMIT;
+    @Getter @Setter private CapturePolicy capturePolicy = CapturePolicy.ALL;
+
+    public RestexExecChainHandler(RestexCaptureTarget target) { this.target = target; }
+
+    public HttpClientBuilder addTo(HttpClientBuilder builder) {
+        return builder.addExecInterceptorBefore(ChainElement.MAIN_TRANSPORT.name(), NAME, this);
+    }
+
+    @Override
+    public ClassicHttpResponse execute(ClassicHttpRequest request, ExecChain.Scope scope, ExecChain chain) throws IOException, HttpException {
+        final RestexCaptureTarget capture = capturePolicy.captureExchange(Hc5Messages.request(request)) ? target.forExchange() : null;
+        if (capture == null) return chain.proceed(request, scope);
+
+        final Hc5Exchange exchange = new Hc5Exchange(capture, capturePolicy, captureLimit);
+        final HttpEntity entity = request.getEntity();
+        exchange.requestStarted(request, entity);
+        if (entity != null) request.setEntity(new RequestEntity(entity, exchange));
+
+        final ClassicHttpResponse response;
+        try {
+            response = chain.proceed(request, scope);
+        } catch (IOException | HttpException | RuntimeException e) {
+            exchange.discard();
+            throw e;
+        } finally {
+            request.setEntity(entity);
+        }
+
+        final HttpEntity responseEntity = response.getEntity();
+        exchange.responseReceived(response, responseEntity, scope.clientContext.getProtocolVersion());
+        if (responseEntity == null) {
+            exchange.responseCompleted();
+            exchange.deliver();
+        } else {
+            response.setEntity(new ResponseEntity(responseEntity, exchange));
+        }
+        return response;
+    }
+
+    private static class RequestEntity extends HttpEntityWrapper {
+
+        private final Hc5Exchange exchange;
+
+        RequestEntity(HttpEntity entity, Hc5Exchange exchange) {
+            super(entity);
+            this.exchange = exchange;
+        }
+
+        @Override public void writeTo(OutputStream out) throws IOException {
+            super.writeTo(exchange.requestStream(out));
+            exchange.requestSent();
+        }
+    }
+
+    private static class ResponseEntity extends HttpEntityWrapper {
+
+        private final Hc5Exchange exchange;
+
+        ResponseEntity(HttpEntity entity, Hc5Exchange exchange) {
+            super(entity);
+            this.exchange = exchange;
+        }
+
+        @Override public InputStream getContent() throws IOException {
+            return exchange.responseStream(super.getContent(), buffer -> {
+                exchange.responseCompleted();
+                exchange.deliver();
+            });
+        }
+
+        @Override public void writeTo(OutputStream out) throws IOException {
+            try (InputStream in = getContent()) {
+                IOUtils.copyLarge(in, out);
+            }
+        }
+    }
+}
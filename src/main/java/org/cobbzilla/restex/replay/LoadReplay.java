@@ -0,0 +1,354 @@
+package org.cobbzilla.restex.replay;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.cobbzilla.restex.LatencyHistogram;
+import org.cobbzilla.restex.targets.CaptureLogReader;
+import org.cobbzilla.restex.targets.CapturedHeaders;
+import org.cobbzilla.restex.targets.SimpleCaptureTarget;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.cobbzilla.restex.LatencyHistogram.format;
+
+/**
+ * Replays recorded sessions against a live service as load. Every session in a capture log becomes a sequence
+ * of requests that one worker sends in the order they were recorded; workers take sequences in log order, going
+ * round iterations times. The requests can be paced to a target rate over all the workers. The report has the
+ * throughput and, for each endpoint (method and path), latency percentiles, errors and responses whose status
+ * differs from the recorded one.
+ *
+ * Workers are virtual threads when the JVM has them (Java 21 and up), platform threads otherwise.
+ *
+ *     java -cp <restex and its dependencies> org.cobbzilla.restex.replay.LoadReplay target/api-log http://localhost:8080 32 500 10
+ */
+@Slf4j
+public class LoadReplay {
+
+    // the client and connection work these out for themselves
+    private static final Set<String> SKIP_HEADERS = new HashSet<>(Arrays.asList(
+            "host", "content-length", "transfer-encoding", "connection", "keep-alive", "expect"));
+
+    @Getter private final List<Sequence> sequences;
+
+    @Getter @Setter private int workers = 8;
+    @Getter @Setter private double rate = 0; // requests per second over all workers, 0 is as fast as they can go
+    @Getter @Setter private int iterations = 1;
+    @Getter @Setter private boolean virtualThreads = true;
+
+    public LoadReplay (List<Sequence> sequences) { this.sequences = sequences; }
+
+    public static void main (String[] args) throws Exception {
+        if (args.length < 2 || args.length > 5) {
+            System.err.println("usage: " + LoadReplay.class.getName() + " <log-dir> <base-url> [<workers> [<requests-per-second> [<iterations>]]]");
+            System.exit(2);
+        }
+        final LoadReplay replay = load(new File(args[0]));
+        if (args.length > 2) replay.setWorkers(Integer.parseInt(args[2]));
+        if (args.length > 3) replay.setRate(Double.parseDouble(args[3]));
+        if (args.length > 4) replay.setIterations(Integer.parseInt(args[4]));
+        System.out.println(replay.run(args[1]));
+    }
+
+    /** @return a replay of every session in a log written by LogCaptureTarget, in the order they were logged */
+    public static LoadReplay load (File logDir) throws IOException {
+        final List<Sequence> sequences = new ArrayList<>();
+        try (CaptureLogReader reader = new CaptureLogReader(logDir)) {
+            CaptureLogReader.LoggedSession session;
+            while ((session = reader.read()) != null) {
+                final List<Step> steps = new ArrayList<>(session.getCaptures().size());
+                for (SimpleCaptureTarget capture : session.getCaptures()) {
+                    if (capture.getRequestMethod() == null || capture.getRequestUri() == null) continue;
+                    final Step step = new Step(capture);
+                    if (step.isTruncated()) {
+                        log.warn("load: "+session.getContext()+": skipping "+step.getEndpoint()+", its request body was only captured in part");
+                        continue;
+                    }
+                    steps.add(step);
+                }
+                if (!steps.isEmpty()) sequences.add(new Sequence(session.getContext(), session.getComment(), steps));
+            }
+        }
+        return new LoadReplay(sequences);
+    }
+
+    /** @return the distinct contexts, each with its sequences in recorded order */
+    public Map<String, List<Sequence>> getContexts () {
+        final Map<String, List<Sequence>> contexts = new LinkedHashMap<>();
+        for (Sequence sequence : sequences) contexts.computeIfAbsent(sequence.getContext(), c -> new ArrayList<>()).add(sequence);
+        return contexts;
+    }
+
+    /** Sends every sequence iterations times against baseUrl and waits for all of them */
+    public Report run (String baseUrl) throws InterruptedException, IOException {
+        if (sequences.isEmpty()) throw new IllegalStateException("run: nothing to replay");
+        final String base = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        final PoolingHttpClientConnectionManager connections = new PoolingHttpClientConnectionManager();
+        connections.setMaxTotal(workers);
+        connections.setDefaultMaxPerRoute(workers);
+        final Run run = new Run(base, rate);
+        final ExecutorService executor = newExecutor();
+        try (CloseableHttpClient client = HttpClients.custom().setConnectionManager(connections)
+                .disableRedirectHandling().disableAutomaticRetries().disableCookieManagement().disableContentCompression()
+                .build()) {
+            final int total = iterations * sequences.size();
+            final AtomicInteger next = new AtomicInteger(0);
+            final List<Future<?>> results = new ArrayList<>(workers);
+            for (int w=0; w<workers; w++) {
+                results.add(executor.submit(() -> {
+                    for (int i = next.getAndIncrement(); i < total; i = next.getAndIncrement()) {
+                        if (!run.replay(client, sequences.get(i % sequences.size()))) return null;
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    throw new IOException("run: worker failed: "+e.getCause(), e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return run.report();
+    }
+
+    private ExecutorService newExecutor () {
+        if (virtualThreads) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                log.debug("newExecutor: no virtual threads in this JVM, using platform threads");
+            }
+        }
+        final AtomicInteger count = new AtomicInteger(0);
+        return Executors.newFixedThreadPool(workers, r -> {
+            final Thread t = new Thread(r, "restex-load-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    static String pathAndQuery (String uri) {
+        try {
+            final URI parsed = new URI(uri);
+            final String path = parsed.getRawPath() == null || parsed.getRawPath().isEmpty() ? "/" : parsed.getRawPath();
+            return parsed.getRawQuery() == null ? path : path + "?" + parsed.getRawQuery();
+        } catch (URISyntaxException e) {
+            return uri.startsWith("/") ? uri : "/" + uri;
+        }
+    }
+
+    /** One recorded session: the requests a test made, in order */
+    public static class Sequence {
+        @Getter private final String context;
+        @Getter private final String comment;
+        @Getter private final List<Step> steps;
+
+        public Sequence (String context, String comment, List<Step> steps) {
+            this.context = context;
+            this.comment = comment;
+            this.steps = steps;
+        }
+    }
+
+    /** One recorded request, with the note that led up to it and the status it got when recorded */
+    public static class Step {
+        @Getter private final String method;
+        @Getter private final String path;
+        @Getter private final String endpoint;
+        @Getter private final CapturedHeaders headers = new CapturedHeaders();
+        @Getter private final byte[] body;
+        @Getter private final boolean truncated;
+        @Getter private final String note;
+        @Getter private final int recordedStatus;
+
+        public Step (SimpleCaptureTarget capture) {
+            method = capture.getRequestMethod();
+            path = pathAndQuery(capture.getRequestUri());
+            final int q = path.indexOf('?');
+            endpoint = method + " " + (q == -1 ? path : path.substring(0, q));
+            final CapturedHeaders recorded = capture.getRequestHeaderFields();
+            for (int i=0; i<recorded.size(); i++) {
+                if (!SKIP_HEADERS.contains(recorded.getName(i).toLowerCase(Locale.ROOT))) headers.add(recorded.getName(i), recorded.getValue(i));
+            }
+            body = body(capture);
+            truncated = body != null && body.length < sentBytes(capture);
+            note = capture.getNote();
+            recordedStatus = capture.getStatusCode();
+        }
+
+        private static byte[] body (SimpleCaptureTarget capture) {
+            final ByteBuffer recorded = capture.getRequestBody();
+            if (recorded != null) {
+                final byte[] bytes = new byte[recorded.remaining()];
+                recorded.duplicate().get(bytes);
+                return bytes;
+            }
+            final String entity = capture.getBinaryRequest() == null ? capture.getRequestEntity() : null;
+            return entity == null ? null : entity.getBytes(StandardCharsets.UTF_8);
+        }
+
+        // captures stop at captureLimit in streaming mode, so the size sent (or the declared length) can be larger than the body
+        private static long sentBytes (SimpleCaptureTarget capture) {
+            if (capture.getTiming() != null && capture.getTiming().getRequestBytes() != -1) return capture.getTiming().getRequestBytes();
+            final String length = capture.getRequestHeaderFields().get("Content-Length");
+            try {
+                return length == null ? -1 : Long.parseLong(length.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        HttpUriRequest toRequest (String base) {
+            final RequestBuilder builder = RequestBuilder.create(method).setUri(base + path);
+            for (int i=0; i<headers.size(); i++) builder.addHeader(headers.getName(i), headers.getValue(i));
+            if (body != null && body.length > 0) builder.setEntity(new ByteArrayEntity(body));
+            return builder.build();
+        }
+    }
+
+    /** What one endpoint saw during a run */
+    public static class Endpoint {
+        @Getter private final String endpoint;
+        @Getter private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLong errors = new AtomicLong(0);
+        private final AtomicLong unexpectedStatus = new AtomicLong(0);
+
+        Endpoint (String endpoint) { this.endpoint = endpoint; }
+
+        public long getCount () { return latency.getCount(); }
+
+        /** @return requests that failed without a response */
+        public long getErrors () { return errors.get(); }
+
+        /** @return responses whose status was not the one recorded */
+        public long getUnexpectedStatus () { return unexpectedStatus.get(); }
+
+        @Override public String toString () {
+            return String.format(Locale.ROOT, "%-40s %8d  p50 %10s  p90 %10s  p99 %10s  max %10s  errors %d  unexpected status %d",
+                    endpoint, getCount(), format(latency.getValueAtPercentile(50)), format(latency.getValueAtPercentile(90)),
+                    format(latency.getValueAtPercentile(99)), format(latency.getCount() == 0 ? -1 : latency.getMax()),
+                    getErrors(), getUnexpectedStatus());
+        }
+    }
+
+    private class Run {
+        private final String base;
+        private final long intervalNanos;
+        private final AtomicLong nextSlot;
+        private final long started = System.nanoTime();
+        private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+        private final AtomicLong requests = new AtomicLong(0);
+
+        Run (String base, double rate) {
+            this.base = base;
+            this.intervalNanos = rate <= 0 ? 0 : (long) (1_000_000_000L / rate);
+            this.nextSlot = new AtomicLong(started);
+        }
+
+        // every request takes the next free slot, so the rate holds however many workers there are.
+        // @return when the request should have been sent: latency counts from there, so time spent waiting behind
+        // a slow response is not left out of the percentiles (coordinated omission)
+        private long pace () throws InterruptedException {
+            if (intervalNanos == 0) return System.nanoTime();
+            final long slot = nextSlot.getAndAdd(intervalNanos);
+            final long wait = slot - System.nanoTime();
+            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+            return slot;
+        }
+
+        // @return false if interrupted
+        boolean replay (CloseableHttpClient client, Sequence sequence) {
+            for (Step step : sequence.getSteps()) {
+                final long start;
+                try {
+                    start = pace();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                if (step.getNote() != null && log.isDebugEnabled()) log.debug("replay: "+sequence.getContext()+": "+step.getNote());
+                final Endpoint endpoint = endpoints.computeIfAbsent(step.getEndpoint(), Endpoint::new);
+                requests.incrementAndGet();
+                try {
+                    final HttpResponse response = client.execute(step.toRequest(base));
+                    // reads the rest of the body, so the whole response counts and not just the headers
+                    EntityUtils.consume(response.getEntity());
+                    endpoint.latency.record(System.nanoTime() - start);
+                    if (step.getRecordedStatus() > 0 && response.getStatusLine().getStatusCode() != step.getRecordedStatus()) {
+                        endpoint.unexpectedStatus.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    endpoint.errors.incrementAndGet();
+                    log.debug("replay: "+step.getEndpoint()+" failed: "+e);
+                }
+            }
+            return true;
+        }
+
+        Report report () {
+            final LatencyHistogram overall = new LatencyHistogram();
+            for (Endpoint endpoint : endpoints.values()) overall.add(endpoint.latency);
+            return new Report(requests.get(), System.nanoTime() - started, overall, new TreeMap<>(endpoints));
+        }
+    }
+
+    public static class Report {
+        @Getter private final long requests;
+        @Getter private final long elapsedNanos;
+        @Getter private final LatencyHistogram latency;
+        @Getter private final SortedMap<String, Endpoint> endpoints;
+
+        Report (long requests, long elapsedNanos, LatencyHistogram latency, SortedMap<String, Endpoint> endpoints) {
+            this.requests = requests;
+            this.elapsedNanos = elapsedNanos;
+            this.latency = latency;
+            this.endpoints = endpoints;
+        }
+
+        /** @return requests sent per second, over the whole run */
+        public double getThroughput () { return elapsedNanos <= 0 ? 0 : requests * 1_000_000_000.0 / elapsedNanos; }
+
+        public long getErrors () {
+            long errors = 0;
+            for (Endpoint endpoint : endpoints.values()) errors += endpoint.getErrors();
+            return errors;
+        }
+
+        public long getUnexpectedStatus () {
+            long unexpected = 0;
+            for (Endpoint endpoint : endpoints.values()) unexpected += endpoint.getUnexpectedStatus();
+            return unexpected;
+        }
+
+        @Override public String toString () {
+            final StringBuilder b = new StringBuilder(String.format(Locale.ROOT,
+                    "%d requests in %s (%.1f/s), %d errors, %d unexpected status, p50 %s, p99 %s\n",
+                    requests, format(elapsedNanos), getThroughput(), getErrors(), getUnexpectedStatus(),
+                    format(latency.getValueAtPercentile(50)), format(latency.getValueAtPercentile(99))));
+            for (Endpoint endpoint : endpoints.values()) b.append(endpoint).append('\n');
+            return b.toString();
+        }
+    }
+}
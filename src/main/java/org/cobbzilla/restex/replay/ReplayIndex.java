@@ -0,0 +1,149 @@
+package org.cobbzilla.restex.replay;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.cobbzilla.restex.targets.BodyStore;
+import org.cobbzilla.restex.targets.CaptureLogReader;
+import org.cobbzilla.restex.targets.CapturedHeaders;
+import org.cobbzilla.restex.targets.SimpleCaptureTarget;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recorded responses, found by a hash lookup on the request: method, normalized URI and, for requests with a body,
+ * the SHA-256 of the body. A request whose body was never recorded falls back to the responses recorded for its
+ * method and URI with any body. When the same request was recorded more than once, its responses are served in
+ * the order they were recorded, and the last one is repeated after that, so a GET before and after a PUT still
+ * sees the two states it saw when recording.
+ *
+ * Fill the index in before serving from it; lookups are safe from any number of threads.
+ */
+@Slf4j
+public class ReplayIndex {
+
+    private final Map<String, Responses> responses = new ConcurrentHashMap<>();
+    @Getter private int exchanges = 0;
+
+    /** @return an index of every exchange in a log written by LogCaptureTarget */
+    public static ReplayIndex load (File logDir) throws IOException {
+        final ReplayIndex index = new ReplayIndex();
+        try (CaptureLogReader reader = new CaptureLogReader(logDir)) {
+            CaptureLogReader.LoggedSession session;
+            while ((session = reader.read()) != null) {
+                for (SimpleCaptureTarget capture : session.getCaptures()) index.add(capture);
+            }
+        }
+        return index;
+    }
+
+    public synchronized ReplayIndex add (SimpleCaptureTarget capture) {
+        if (capture.getRequestMethod() == null || capture.getRequestUri() == null || capture.getStatusCode() <= 0) {
+            log.warn("add: skipping incomplete capture: "+capture);
+            return this;
+        }
+        final Response response = new Response(capture.getStatusCode(), capture.getReasonPhrase(),
+                                               copyHeaders(capture.getResponseHeaderFields()), responseBody(capture));
+        final ByteBuffer requestBody = requestBody(capture);
+        if (requestBody != null) add(key(capture.getRequestMethod(), capture.getRequestUri(), requestBody), response);
+        add(key(capture.getRequestMethod(), capture.getRequestUri(), null), response);
+        exchanges++;
+        return this;
+    }
+
+    private void add (String key, Response response) { responses.computeIfAbsent(key, k -> new Responses()).add(response); }
+
+    /** @return the next recorded response for this request, or null if it was never recorded */
+    public Response find (String method, String uri, ByteBuffer body) {
+        Responses found = null;
+        if (body != null && body.hasRemaining()) found = responses.get(key(method, uri, body));
+        if (found == null) found = responses.get(key(method, uri, null));
+        return found == null ? null : found.next();
+    }
+
+    /** @return the number of distinct request keys, with and without body hashes */
+    public int size () { return responses.size(); }
+
+    static String key (String method, String uri, ByteBuffer body) {
+        final String key = method.toUpperCase(Locale.ROOT) + " " + normalize(uri);
+        return body == null ? key : key + " " + BodyStore.hash(body);
+    }
+
+    /**
+     * The path and query of a URI, whether it was recorded absolute or not, with the query parameters sorted and
+     * any fragment dropped. Parameters that repeat keep their order, since it can matter to the server.
+     */
+    public static String normalize (String uri) {
+        String path;
+        String query;
+        try {
+            final URI parsed = new URI(uri);
+            path = parsed.getRawPath();
+            query = parsed.getRawQuery();
+        } catch (URISyntaxException e) {
+            // keep what was recorded, just split off the query
+            final int fragment = uri.indexOf('#');
+            final String s = fragment == -1 ? uri : uri.substring(0, fragment);
+            final int q = s.indexOf('?');
+            path = q == -1 ? s : s.substring(0, q);
+            query = q == -1 ? null : s.substring(q + 1);
+        }
+        if (path == null || path.isEmpty()) path = "/";
+        if (query == null || query.isEmpty()) return path;
+        final String[] params = query.split("&");
+        // stable sort on the name only
+        Arrays.sort(params, Comparator.comparing(p -> { final int eq = p.indexOf('='); return eq == -1 ? p : p.substring(0, eq); }));
+        return path + "?" + String.join("&", params);
+    }
+
+    private static ByteBuffer requestBody (SimpleCaptureTarget capture) {
+        if (capture.getRequestBody() != null) return capture.getRequestBody().hasRemaining() ? capture.getRequestBody() : null;
+        final String entity = capture.getBinaryRequest() == null ? capture.getRequestEntity() : null;
+        return entity == null || entity.isEmpty() ? null : ByteBuffer.wrap(entity.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer responseBody (SimpleCaptureTarget capture) {
+        if (capture.getResponseBody() != null) return capture.getResponseBody().duplicate();
+        final String entity = capture.getBinaryResponse() == null ? capture.getResponseEntity() : null;
+        return entity == null ? null : ByteBuffer.wrap(entity.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static CapturedHeaders copyHeaders (CapturedHeaders headers) {
+        final CapturedHeaders copy = new CapturedHeaders();
+        for (int i=0; i<headers.size(); i++) copy.add(headers.getName(i), headers.getValue(i));
+        return copy;
+    }
+
+    private static class Responses {
+        private final List<Response> recorded = new ArrayList<>(1);
+        private final AtomicInteger served = new AtomicInteger(0);
+
+        void add (Response response) { recorded.add(response); }
+
+        Response next () { return recorded.get(served.getAndUpdate(n -> Math.min(n + 1, recorded.size() - 1))); }
+    }
+
+    public static class Response {
+        @Getter private final int statusCode;
+        @Getter private final String reasonPhrase;
+        @Getter private final CapturedHeaders headers;
+        private final ByteBuffer body;
+
+        Response (int statusCode, String reasonPhrase, CapturedHeaders headers, ByteBuffer body) {
+            this.statusCode = statusCode;
+            this.reasonPhrase = reasonPhrase;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        /** @return the body as recorded, or null if the response had none; each call gets its own view of it */
+        public ByteBuffer getBody () { return body == null ? null : body.duplicate(); }
+    }
+}
@@ -0,0 +1,138 @@
+package org.cobbzilla.restex.replay;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.IOUtils;
+import org.cobbzilla.restex.targets.CapturedHeaders;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local HTTP server that answers every request with the response recorded for it in a ReplayIndex, so a suite
+ * can run against recorded backends instead of real ones. Requests that were never recorded get a 404 and are
+ * counted as misses. It runs on the JDK's built-in HTTP server, so it needs nothing on the classpath but restex.
+ *
+ *     java -cp <restex and its dependencies> org.cobbzilla.restex.replay.ReplayServer target/api-log 8080
+ */
+@Slf4j
+public class ReplayServer implements Closeable {
+
+    public static final int STATUS_NOT_RECORDED = 404;
+
+    // the server works these out for itself
+    private static final Set<String> SKIP_HEADERS = new HashSet<>(Arrays.asList(
+            "content-length", "transfer-encoding", "connection", "keep-alive", "date"));
+
+    private static final AtomicInteger serverCount = new AtomicInteger(0);
+
+    @Getter private final ReplayIndex index;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    public ReplayServer (ReplayIndex index) { this.index = index; }
+
+    public static void main (String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("usage: " + ReplayServer.class.getName() + " <log-dir> [<port>]");
+            System.exit(2);
+        }
+        final ReplayIndex index = ReplayIndex.load(new File(args[0]));
+        final ReplayServer server = new ReplayServer(index).start(args.length == 2 ? Integer.parseInt(args[1]) : 0);
+        System.out.println("Replaying " + index.getExchanges() + " exchanges on http://127.0.0.1:" + server.getPort() + "/");
+    }
+
+    /** Starts serving on the loopback address; port 0 picks a free port, see getPort() */
+    public synchronized ReplayServer start (int port) throws IOException {
+        if (server != null) throw new IllegalStateException("start: already started on port "+getPort());
+        final int n = serverCount.incrementAndGet();
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        executor = Executors.newCachedThreadPool(r -> {
+            final Thread t = new Thread(r, "restex-replay-" + n + "-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+        return this;
+    }
+
+    public int getPort () { return server.getAddress().getPort(); }
+
+    public String getBaseUri () { return "http://127.0.0.1:" + getPort(); }
+
+    public long getHits () { return hits.get(); }
+
+    /** @return requests answered with a 404 because nothing was recorded for them */
+    public long getMisses () { return misses.get(); }
+
+    private void handle (HttpExchange exchange) throws IOException {
+        try {
+            final byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+            final String method = exchange.getRequestMethod();
+            final String uri = exchange.getRequestURI().toString();
+            final ReplayIndex.Response response = index.find(method, uri, body.length == 0 ? null : ByteBuffer.wrap(body));
+            if (response == null) {
+                misses.incrementAndGet();
+                final byte[] message = ("restex replay: nothing recorded for " + method + " " + ReplayIndex.normalize(uri) + "\n").getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(STATUS_NOT_RECORDED, message.length);
+                exchange.getResponseBody().write(message);
+                return;
+            }
+            hits.incrementAndGet();
+
+            final CapturedHeaders headers = response.getHeaders();
+            for (int i=0; i<headers.size(); i++) {
+                if (!SKIP_HEADERS.contains(headers.getName(i).toLowerCase(Locale.ROOT))) {
+                    exchange.getResponseHeaders().add(headers.getName(i), headers.getValue(i));
+                }
+            }
+            final ByteBuffer data = response.getBody();
+            final boolean noBody = data == null || !data.hasRemaining() || method.equalsIgnoreCase("HEAD")
+                    || response.getStatusCode() == 204 || response.getStatusCode() == 304;
+            exchange.sendResponseHeaders(response.getStatusCode(), noBody ? -1 : data.remaining());
+            if (!noBody) {
+                final OutputStream out = exchange.getResponseBody();
+                final WritableByteChannel channel = Channels.newChannel(out);
+                while (data.hasRemaining()) channel.write(data);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("handle: error replaying "+exchange.getRequestMethod()+" "+exchange.getRequestURI()+": "+e);
+            throw e;
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @Override public synchronized void close () {
+        if (server == null) return;
+        server.stop(0);
+        executor.shutdownNow();
+        server = null;
+        executor = null;
+    }
+}
@@ -0,0 +1,92 @@
+package org.cobbzilla.restex.targets;
+
+import lombok.Getter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bodies stored by the SHA-256 of their content, one file per distinct body: a fixture or list response that
+ * shows up in a hundred captures is written once, and every capture links to the same file. Files are written
+ * to a temp file first and moved into place, so a body file is never seen half written.
+ */
+public class BodyStore {
+
+    public static final String HASH_ALGORITHM = "SHA-256";
+
+    @Getter private final File dir;
+
+    // hashes known to be on disk, from this run or an earlier one
+    private final Set<String> stored = ConcurrentHashMap.newKeySet();
+    private final AtomicLong written = new AtomicLong(0);
+    private final AtomicLong deduplicated = new AtomicLong(0);
+
+    public BodyStore (File dir) { this.dir = dir; }
+
+    /** @return the lowercase hex SHA-256 of the remaining bytes, leaving the buffer's position where it was */
+    public static String hash (ByteBuffer body) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("hash: "+HASH_ALGORITHM+" not available: "+e, e);
+        }
+        digest.update(body.duplicate());
+        final StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return hex.toString();
+    }
+
+    public File file (String hash) { return new File(dir, hash); }
+
+    /** Writes the body unless a body with the same content is already stored. @return its hash */
+    public String store (ByteBuffer body) throws IOException {
+        final String hash = hash(body);
+        if (stored.contains(hash)) {
+            deduplicated.incrementAndGet();
+            return hash;
+        }
+        final File file = file(hash);
+        if (file.exists()) {
+            stored.add(hash);
+            deduplicated.incrementAndGet();
+            return hash;
+        }
+        if (!dir.exists() && !dir.mkdirs() && !dir.exists()) {
+            throw new IOException("Error creating directory: "+dir.getAbsolutePath());
+        }
+        final File temp = File.createTempFile(hash, ".tmp", dir);
+        try {
+            try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+                final ByteBuffer data = body.duplicate();
+                while (data.hasRemaining()) channel.write(data);
+            }
+            // another thread may have stored the same body meanwhile, the content is the same either way
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+        if (stored.add(hash)) {
+            written.incrementAndGet();
+        } else {
+            deduplicated.incrementAndGet();
+        }
+        return hash;
+    }
+
+    /** @return distinct bodies written by this store */
+    public long getWritten () { return written.get(); }
+
+    /** @return bodies not written because the same content was already stored */
+    public long getDeduplicated () { return deduplicated.get(); }
+}
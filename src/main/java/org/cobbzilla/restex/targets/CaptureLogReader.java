@@ -0,0 +1,173 @@
+package org.cobbzilla.restex.targets;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.entity.ContentType;
+import org.cobbzilla.restex.CaptureBuffer;
+import org.cobbzilla.restex.ExchangeTiming;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.cobbzilla.restex.targets.LogCaptureTarget.*;
+
+/**
+ * Streams the sessions in a log written by LogCaptureTarget, one at a time. A record cut short at the end of
+ * a segment (the run died while writing it) is skipped with a warning.
+ */
+@Slf4j
+public class CaptureLogReader implements Closeable {
+
+    private final Iterator<File> segments;
+    private File current;
+    private DataInputStream in;
+
+    public CaptureLogReader (File logDir) {
+        if (!logDir.isDirectory()) throw new IllegalArgumentException("logDir does not exist: "+logDir.getAbsolutePath());
+        this.segments = LogCaptureTarget.segments(logDir).iterator();
+    }
+
+    /** @return the next session in the log, or null when there are no more */
+    public LoggedSession read () throws IOException {
+        while (true) {
+            if (in == null) {
+                if (!segments.hasNext()) return null;
+                open(segments.next());
+            }
+            try {
+                in.readLong(); // record length, only needed by readers that skip records
+            } catch (EOFException e) {
+                closeSegment();
+                continue;
+            }
+            try {
+                return readSession();
+            } catch (EOFException e) {
+                log.warn("read: skipping truncated record at the end of "+current.getAbsolutePath());
+                closeSegment();
+            }
+        }
+    }
+
+    private void open (File segment) throws IOException {
+        current = segment;
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)));
+        final int magic;
+        final int version;
+        try {
+            magic = in.readInt();
+            version = in.readInt();
+        } catch (EOFException e) {
+            closeSegment();
+            throw new IOException("Not a capture log segment: "+segment.getAbsolutePath());
+        }
+        if (magic != MAGIC) {
+            closeSegment();
+            throw new IOException("Not a capture log segment: "+segment.getAbsolutePath());
+        }
+        if (version != FORMAT_VERSION) {
+            closeSegment();
+            throw new IOException("Unsupported capture log version "+version+" in "+segment.getAbsolutePath());
+        }
+    }
+
+    private LoggedSession readSession () throws IOException {
+        final String context = readString(in);
+        final String comment = readString(in);
+        final int count = in.readInt();
+
+        // bodies follow the metadata, in the order the metadata mentions them
+        final List<Integer> bodyLengths = new ArrayList<>();
+        final List<Consumer<ByteBuffer>> bodyTargets = new ArrayList<>();
+
+        final List<SimpleCaptureTarget> captures = new ArrayList<>(count);
+        for (int i=0; i<count; i++) {
+            final SimpleCaptureTarget capture = new SimpleCaptureTarget();
+            capture.setNote(readString(in));
+
+            capture.requestUri(readString(in), readString(in));
+            for (int h=in.readInt(); h>0; h--) capture.requestHeader(readString(in), readString(in));
+            final String binaryRequest = readString(in);
+            if (binaryRequest != null) capture.setBinaryRequest(binaryRequest);
+            switch (in.readByte()) {
+                case BODY_BYTES:
+                    final ContentType requestType = parseContentType(readString(in));
+                    bodyLengths.add(in.readInt());
+                    bodyTargets.add(body -> capture.requestEntity(body, requestType));
+                    break;
+                case BODY_TEXT: capture.requestEntity(readString(in)); break;
+                default: break;
+            }
+
+            capture.responseStatus(in.readInt(), readString(in), readString(in));
+            for (int h=in.readInt(); h>0; h--) capture.responseHeader(readString(in), readString(in));
+            final String binaryResponse = readString(in);
+            if (binaryResponse != null) capture.setBinaryResponse(binaryResponse);
+            switch (in.readByte()) {
+                case BODY_BYTES:
+                    final ContentType responseType = parseContentType(readString(in));
+                    bodyLengths.add(in.readInt());
+                    bodyTargets.add(body -> capture.responseEntity(body, responseType));
+                    break;
+                case BODY_TEXT: capture.responseEntity(readString(in)); break;
+                default: break;
+            }
+            if (in.readBoolean()) {
+                capture.exchangeTiming(new ExchangeTiming(in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readLong()));
+            }
+            captures.add(capture);
+        }
+
+        for (int i=0; i<bodyLengths.size(); i++) {
+            // large bodies spill to disk here too, so one huge response does not have to fit on the heap
+            try (CaptureBuffer body = new CaptureBuffer(Long.MAX_VALUE)) {
+                final long length = bodyLengths.get(i);
+                if (IOUtils.copyLarge(in, body, 0, length) != length) throw new EOFException("truncated body");
+                bodyTargets.get(i).accept(body.toByteBuffer());
+            }
+        }
+        return new LoggedSession(context, comment, captures);
+    }
+
+    private static String readString (DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) return null;
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static ContentType parseContentType (String value) {
+        if (value == null) return null;
+        try {
+            return ContentType.parse(value);
+        } catch (Exception e) {
+            log.warn("parseContentType: unparseable content type, treating as unknown: "+value);
+            return null;
+        }
+    }
+
+    private void closeSegment () throws IOException {
+        if (in != null) {
+            in.close();
+            in = null;
+        }
+    }
+
+    @Override public void close () throws IOException { closeSegment(); }
+
+    @AllArgsConstructor
+    public static class LoggedSession {
+        @Getter private final String context;
+        @Getter private final String comment;
+        @Getter private final List<SimpleCaptureTarget> captures;
+    }
+
+}
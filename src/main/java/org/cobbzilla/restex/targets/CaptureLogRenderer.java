@@ -0,0 +1,46 @@
+package org.cobbzilla.restex.targets;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Renders a log written by LogCaptureTarget into the same HTML docs TemplateCaptureTarget would have written
+ * while the tests ran. Templates are loaded from the classpath, so custom ones just need to be on it.
+ */
+public class CaptureLogRenderer {
+
+    public static void main (String[] args) throws IOException {
+        if (args.length != 2 && args.length != 7) {
+            System.err.println("usage: " + CaptureLogRenderer.class.getName() + " <log-dir> <output-dir>"
+                    + " [<index-template> <index-more-template> <header-template> <footer-template> <entry-template>]");
+            System.exit(2);
+        }
+        final File outputDir = new File(args[1]);
+        final TemplateCaptureTarget target = args.length == 2
+                ? new TemplateCaptureTarget(outputDir)
+                : new TemplateCaptureTarget(outputDir, args[2], args[3], args[4], args[5], args[6]);
+        final int count = render(new File(args[0]), target);
+        System.out.println("Rendered " + count + " sessions into " + outputDir.getAbsolutePath());
+    }
+
+    /**
+     * Commits every session in the log to the target, in the order they were logged, then closes the target.
+     * @return the number of sessions rendered
+     */
+    public static int render (File logDir, TemplateCaptureTarget target) throws IOException {
+        int count = 0;
+        try (CaptureLogReader reader = new CaptureLogReader(logDir)) {
+            CaptureLogReader.LoggedSession logged;
+            while ((logged = reader.read()) != null) {
+                final RecordingSession session = target.newSession(logged.getContext(), logged.getComment());
+                for (SimpleCaptureTarget capture : logged.getCaptures()) session.addCapture(capture);
+                target.commit(session);
+                count++;
+            }
+        } finally {
+            target.close();
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,53 @@
+package org.cobbzilla.restex.targets;
+
+import lombok.Getter;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Keeps up to maxSize captures that have been rendered or written, so the next exchanges can fill them in again
+ * instead of allocating new ones. A released capture is reset, which keeps its header arrays. When the pool is
+ * empty a new capture is made; when it is full a released capture is left to the garbage collector.
+ */
+public class CapturePool<T extends SimpleCaptureTarget> {
+
+    @Getter private final int maxSize;
+    private final Supplier<T> factory;
+    private final BlockingQueue<T> free;
+    private final AtomicLong created = new AtomicLong(0);
+    private final AtomicLong reused = new AtomicLong(0);
+
+    public CapturePool(int maxSize, Supplier<T> factory) {
+        if (maxSize <= 0) throw new IllegalArgumentException("maxSize must be positive: "+maxSize);
+        this.maxSize = maxSize;
+        this.factory = factory;
+        this.free = new ArrayBlockingQueue<>(maxSize);
+    }
+
+    public T acquire () {
+        final T capture = free.poll();
+        if (capture != null) {
+            reused.incrementAndGet();
+            return capture;
+        }
+        created.incrementAndGet();
+        return factory.get();
+    }
+
+    /** The capture must not be used again by whoever released it */
+    public void release (T capture) {
+        capture.reset();
+        free.offer(capture);
+    }
+
+    public int getFree () { return free.size(); }
+
+    /** @return captures made because the pool was empty */
+    public long getCreated () { return created.get(); }
+
+    /** @return captures handed out again after being released */
+    public long getReused () { return reused.get(); }
+}
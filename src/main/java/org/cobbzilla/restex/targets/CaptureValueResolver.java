@@ -0,0 +1,147 @@
+package org.cobbzilla.restex.targets;
+
+import com.github.jknack.handlebars.ValueResolver;
+import org.cobbzilla.restex.ExchangeTiming;
+import org.cobbzilla.restex.LatencyHistogram;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Resolves the properties the templates use on captures, sessions, timings and index entries through plain getter
+ * calls registered up front, instead of looking up and invoking getters reflectively on every access. Anything not
+ * registered here (other classes, or properties a custom template asks for) is left to the default resolvers.
+ */
+public class CaptureValueResolver implements ValueResolver {
+
+    public static final CaptureValueResolver INSTANCE = new CaptureValueResolver();
+
+    private static final Map<Class<?>, Map<String, Function<Object, Object>>> PROPERTIES = new HashMap<>();
+
+    static {
+        properties(SimpleCaptureTarget.class)
+                .add("requestMethod", SimpleCaptureTarget::getRequestMethod)
+                .add("requestUri", SimpleCaptureTarget::getRequestUri)
+                .add("requestHeaders", SimpleCaptureTarget::getRequestHeaders)
+                .add("requestHeaderList", SimpleCaptureTarget::getRequestHeaderList)
+                .add("requestEntity", SimpleCaptureTarget::getRequestEntity)
+                .add("requestBodySize", SimpleCaptureTarget::getRequestBodySize)
+                .add("requestBodyFile", SimpleCaptureTarget::getRequestBodyFile)
+                .add("requestBodyHash", SimpleCaptureTarget::getRequestBodyHash)
+                .add("requestContentEncoding", SimpleCaptureTarget::getRequestContentEncoding)
+                .add("requestTruncated", SimpleCaptureTarget::isRequestTruncated)
+                .add("binaryRequest", SimpleCaptureTarget::getBinaryRequest)
+                .add("statusCode", SimpleCaptureTarget::getStatusCode)
+                .add("reasonPhrase", SimpleCaptureTarget::getReasonPhrase)
+                .add("protocolVersion", SimpleCaptureTarget::getProtocolVersion)
+                .add("responseLine", SimpleCaptureTarget::getResponseLine)
+                .add("responseHeaders", SimpleCaptureTarget::getResponseHeaders)
+                .add("responseHeaderList", SimpleCaptureTarget::getResponseHeaderList)
+                .add("responseEntity", SimpleCaptureTarget::getResponseEntity)
+                .add("responseBodySize", SimpleCaptureTarget::getResponseBodySize)
+                .add("responseBodyFile", SimpleCaptureTarget::getResponseBodyFile)
+                .add("responseBodyHash", SimpleCaptureTarget::getResponseBodyHash)
+                .add("responseContentEncoding", SimpleCaptureTarget::getResponseContentEncoding)
+                .add("responseTruncated", SimpleCaptureTarget::isResponseTruncated)
+                .add("binaryResponse", SimpleCaptureTarget::getBinaryResponse)
+                .add("timing", SimpleCaptureTarget::getTiming)
+                .add("note", SimpleCaptureTarget::getNote);
+
+        properties(RecordingSession.class)
+                .add("context", RecordingSession::getContext)
+                .add("comment", RecordingSession::getComment)
+                .add("captures", RecordingSession::getCaptures);
+
+        properties(ExchangeTiming.class)
+                .add("total", ExchangeTiming::getTotal)
+                .add("send", ExchangeTiming::getSend)
+                .add("firstByte", ExchangeTiming::getFirstByte)
+                .add("receive", ExchangeTiming::getReceive)
+                .add("totalNanos", ExchangeTiming::getTotalNanos)
+                .add("sendNanos", ExchangeTiming::getSendNanos)
+                .add("firstByteNanos", ExchangeTiming::getFirstByteNanos)
+                .add("receiveNanos", ExchangeTiming::getReceiveNanos)
+                .add("requestBytes", ExchangeTiming::getRequestBytes)
+                .add("responseBytes", ExchangeTiming::getResponseBytes);
+
+        properties(LatencyHistogram.Summary.class)
+                .add("count", LatencyHistogram.Summary::getCount)
+                .add("p50", LatencyHistogram.Summary::getP50)
+                .add("p99", LatencyHistogram.Summary::getP99)
+                .add("max", LatencyHistogram.Summary::getMax);
+
+        properties(TemplateCaptureTarget.ContextFile.class)
+                .add("context", TemplateCaptureTarget.ContextFile::getContext)
+                .add("fsPath", TemplateCaptureTarget.ContextFile::getFsPath)
+                .add("examples", TemplateCaptureTarget.ContextFile::getExamples)
+                .add("latency", TemplateCaptureTarget.ContextFile::getLatency);
+
+        properties(TemplateCaptureTarget.ContextExample.class)
+                .add("anchor", TemplateCaptureTarget.ContextExample::getAnchor)
+                .add("description", TemplateCaptureTarget.ContextExample::getDescription);
+
+        properties(DocsManifest.Context.class)
+                .add("context", DocsManifest.Context::getContext)
+                .add("fsPath", DocsManifest.Context::getFsPath)
+                .add("examples", DocsManifest.Context::getExamples)
+                .add("latency", DocsManifest.Context::getLatency);
+
+        properties(DocsManifest.Example.class)
+                .add("anchor", DocsManifest.Example::getAnchor)
+                .add("description", DocsManifest.Example::getDescription);
+    }
+
+    // subclasses (like the captures recording sessions hand out) use the properties of the nearest registered class
+    private static final ClassValue<Map<String, Function<Object, Object>>> RESOLVED = new ClassValue<>() {
+        @Override protected Map<String, Function<Object, Object>> computeValue(Class<?> type) {
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                final Map<String, Function<Object, Object>> properties = PROPERTIES.get(c);
+                if (properties != null) return properties;
+            }
+            return Collections.emptyMap();
+        }
+    };
+
+    private final LongAdder resolved = new LongAdder();
+
+    /** @return how many property lookups this resolver has answered */
+    public long getResolved() { return resolved.sum(); }
+
+    @Override public Object resolve(Object context, String name) {
+        if (context == null) return UNRESOLVED;
+        final Function<Object, Object> getter = RESOLVED.get(context.getClass()).get(name);
+        if (getter == null) return UNRESOLVED;
+        resolved.increment();
+        return getter.apply(context);
+    }
+
+    @Override public Object resolve(Object context) { return UNRESOLVED; }
+
+    @Override public Set<Map.Entry<String, Object>> propertySet(Object context) {
+        if (context == null) return Collections.emptySet();
+        final Map<String, Function<Object, Object>> properties = RESOLVED.get(context.getClass());
+        if (properties.isEmpty()) return Collections.emptySet();
+        final Map<String, Object> values = new LinkedHashMap<>();
+        for (Map.Entry<String, Function<Object, Object>> p : properties.entrySet()) values.put(p.getKey(), p.getValue().apply(context));
+        return values.entrySet();
+    }
+
+    private static <T> Getters<T> properties(Class<T> type) {
+        final Map<String, Function<Object, Object>> getters = new LinkedHashMap<>();
+        PROPERTIES.put(type, getters);
+        return new Getters<>(type, getters);
+    }
+
+    private static class Getters<T> {
+        private final Class<T> type;
+        private final Map<String, Function<Object, Object>> getters;
+
+        Getters(Class<T> type, Map<String, Function<Object, Object>> getters) { this.type = type; this.getters = getters; }
+
+        Getters<T> add(String name, Function<T, ?> getter) {
+            getters.put(name, o -> getter.apply(type.cast(o)));
+            return this;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.cobbzilla.restex.targets;
+
+import java.util.*;
+
+/**
+ * The headers of a captured request or response, in the order they went over the wire and with repeats (Set-Cookie,
+ * Vary...) kept, as alternating names and values in one flat array. clear() keeps the array for the next exchange.
+ * The "Name: value" lines the templates show are built on first use and cached until the headers change.
+ */
+public class CapturedHeaders {
+
+    private static final int INITIAL_HEADERS = 16;
+
+    private String[] namesAndValues = new String[INITIAL_HEADERS * 2];
+    private int size = 0;
+    private List<String> lines = null;
+
+    public int size () { return size; }
+
+    public boolean isEmpty () { return size == 0; }
+
+    public String getName (int i) { return namesAndValues[checkIndex(i) * 2]; }
+
+    public String getValue (int i) { return namesAndValues[checkIndex(i) * 2 + 1]; }
+
+    public void add (String name, String value) {
+        if (size * 2 == namesAndValues.length) namesAndValues = Arrays.copyOf(namesAndValues, namesAndValues.length * 2);
+        namesAndValues[size * 2] = name;
+        namesAndValues[size * 2 + 1] = value;
+        size++;
+        lines = null;
+    }
+
+    /** @return the value of the first header with this name (ignoring case), or null if there is none */
+    public String get (String name) {
+        for (int i=0; i<size; i++) {
+            if (namesAndValues[i * 2].equalsIgnoreCase(name)) return namesAndValues[i * 2 + 1];
+        }
+        return null;
+    }
+
+    /** @return the values of every header with this name (ignoring case), in order */
+    public List<String> getAll (String name) {
+        final List<String> values = new ArrayList<>(1);
+        for (int i=0; i<size; i++) {
+            if (namesAndValues[i * 2].equalsIgnoreCase(name)) values.add(namesAndValues[i * 2 + 1]);
+        }
+        return values;
+    }
+
+    public boolean contains (String name) { return get(name) != null; }
+
+    /** @return the headers as "Name: value" lines */
+    public List<String> getLines () {
+        if (lines == null) {
+            final String[] formatted = new String[size];
+            for (int i=0; i<size; i++) formatted[i] = namesAndValues[i * 2] + ": " + namesAndValues[i * 2 + 1];
+            lines = Collections.unmodifiableList(Arrays.asList(formatted));
+        }
+        return lines;
+    }
+
+    /** @return a copy as a map; when a header repeats, the map has its last value at the position of its first */
+    public Map<String, String> toMap () {
+        final Map<String, String> map = new LinkedHashMap<>();
+        for (int i=0; i<size; i++) map.put(namesAndValues[i * 2], namesAndValues[i * 2 + 1]);
+        return map;
+    }
+
+    public void setAll (Map<String, String> headers) {
+        clear();
+        for (Map.Entry<String, String> header : headers.entrySet()) add(header.getKey(), header.getValue());
+    }
+
+    public void clear () {
+        Arrays.fill(namesAndValues, 0, size * 2, null);
+        size = 0;
+        lines = null;
+    }
+
+    private int checkIndex (int i) {
+        if (i < 0 || i >= size) throw new IndexOutOfBoundsException("header "+i+" of "+size);
+        return i;
+    }
+
+    @Override public String toString () { return getLines().toString(); }
+}
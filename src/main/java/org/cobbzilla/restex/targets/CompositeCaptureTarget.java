@@ -0,0 +1,296 @@
+package org.cobbzilla.restex.targets;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.entity.ContentType;
+import org.cobbzilla.restex.ExchangeTiming;
+import org.cobbzilla.restex.RestexCaptureTarget;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Delivers every exchange to several targets, for example docs, a capture log and a flight recorder at once:
+ *
+ *     new CompositeCaptureTarget().add(ringBuffer).addQueued(apiDocs, 1000).addQueued(apiLog, 1000)
+ *
+ * Targets added with add() get each callback inline, on the thread doing the I/O, as if they were used on their own.
+ * Targets added with addQueued() get a bounded queue and a dispatch thread of their own: an exchange is collected
+ * as it goes by and handed over whole once its response entity arrives. If a queue is full the exchange is dropped
+ * for that target only, and counted, so a slow target never holds up the HTTP call or the other targets.
+ *
+ * forExchange() is resolved for every target on the calling thread, so recording sessions work as usual. commit()
+ * follows the exchanges already queued, and waits for room rather than being dropped.
+ */
+@Slf4j
+public class CompositeCaptureTarget implements RestexCaptureTarget, Closeable {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private final List<Sink> sinks = new ArrayList<>();
+
+    // for callers that do not go through forExchange()
+    private final ThreadLocal<Exchange> current = new ThreadLocal<>();
+
+    // once closed there are no dispatch threads left to empty the queues
+    private volatile boolean closed = false;
+
+    public CompositeCaptureTarget add (RestexCaptureTarget target) { sinks.add(new Sink(target, 0)); return this; }
+
+    public CompositeCaptureTarget addQueued (RestexCaptureTarget target) { return addQueued(target, DEFAULT_QUEUE_CAPACITY); }
+
+    public CompositeCaptureTarget addQueued (RestexCaptureTarget target, int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive: "+capacity);
+        final Sink sink = new Sink(target, capacity);
+        sinks.add(sink);
+        sink.start(sinks.size());
+        return this;
+    }
+
+    public List<Sink> getSinks () { return Collections.unmodifiableList(sinks); }
+
+    /** @return exchanges dropped because a queue was full, over all targets */
+    public long getDropped () {
+        long dropped = 0;
+        for (Sink sink : sinks) dropped += sink.getDropped();
+        return dropped;
+    }
+
+    @Override public RestexCaptureTarget forExchange() {
+        final RestexCaptureTarget[] targets = new RestexCaptureTarget[sinks.size()];
+        boolean any = false;
+        for (int i=0; i<targets.length; i++) {
+            targets[i] = sinks.get(i).target.forExchange();
+            any |= targets[i] != null;
+        }
+        return any ? new Exchange(targets) : null;
+    }
+
+    @Override public void requestUri(String method, String uri) {
+        final Exchange exchange = (Exchange) forExchange();
+        if (exchange == null) {
+            current.remove();
+        } else {
+            current.set(exchange);
+            exchange.requestUri(method, uri);
+        }
+    }
+
+    @Override public void requestHeader(String name, String value) { final Exchange e = current.get(); if (e != null) e.requestHeader(name, value); }
+    @Override public void requestEntity(String entityData) { final Exchange e = current.get(); if (e != null) e.requestEntity(entityData); }
+    @Override public void requestEntity(ByteBuffer entityData, ContentType contentType) {
+        final Exchange e = current.get(); if (e != null) e.requestEntity(entityData, contentType);
+    }
+    @Override public void responseStatus(int statusCode, String reasonPhrase, String protocolVersion) {
+        final Exchange e = current.get(); if (e != null) e.responseStatus(statusCode, reasonPhrase, protocolVersion);
+    }
+    @Override public void responseHeader(String name, String value) { final Exchange e = current.get(); if (e != null) e.responseHeader(name, value); }
+    @Override public void exchangeTiming(ExchangeTiming timing) { final Exchange e = current.get(); if (e != null) e.exchangeTiming(timing); }
+    @Override public void responseEntity(String entityData) {
+        final Exchange e = current.get(); if (e != null) { current.remove(); e.responseEntity(entityData); }
+    }
+    @Override public void responseEntity(ByteBuffer entityData, ContentType contentType) {
+        final Exchange e = current.get(); if (e != null) { current.remove(); e.responseEntity(entityData, contentType); }
+    }
+    @Override public void setBinaryRequest(String hint) { final Exchange e = current.get(); if (e != null) e.setBinaryRequest(hint); }
+    @Override public void setBinaryResponse(String hint) { final Exchange e = current.get(); if (e != null) e.setBinaryResponse(hint); }
+
+    /**
+     * Commits every target. A queued target commits on its dispatch thread, after the exchanges queued before this;
+     * a recording session target commits the calling thread's session there. That session is unbound from the
+     * calling thread right away, so the thread can start its next session while the queue catches up.
+     */
+    @Override public void commit() throws IOException {
+        for (Sink sink : sinks) {
+            if (!sink.isQueued()) {
+                sink.target.commit();
+            } else if (sink.target instanceof SessionCaptureTarget) {
+                final SessionCaptureTarget target = (SessionCaptureTarget) sink.target;
+                final RecordingSession session = target.getSession();
+                if (session != null) {
+                    // left bound, the next startRecording would find it still recording and commit it a second time
+                    target.unbind(session);
+                    sink.put(session::commit);
+                }
+            } else {
+                sink.put(sink.target::commit);
+            }
+        }
+    }
+
+    /**
+     * Waits until every queue is empty and the exchanges taken from them have been delivered. Returns right away
+     * once closed, since close() has already delivered everything.
+     */
+    public void flush () {
+        for (Sink sink : sinks) {
+            if (!sink.isQueued() || closed) continue;
+            final CountDownLatch done = new CountDownLatch(1);
+            sink.put(done::countDown);
+            try {
+                // a close() racing with this may stop the dispatch thread before it gets to the latch
+                while (!done.await(100, TimeUnit.MILLISECONDS)) {
+                    if (closed) return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /** Drains the queues, stops the dispatch threads and closes the targets that are Closeable */
+    @Override public void close() throws IOException {
+        closed = true;
+        for (Sink sink : sinks) sink.stop();
+        for (Sink sink : sinks) {
+            if (sink.target instanceof Closeable) ((Closeable) sink.target).close();
+        }
+    }
+
+    private interface Task { void run() throws IOException; }
+
+    private static final Task STOP = () -> {};
+
+    public static class Sink {
+
+        @Getter private final RestexCaptureTarget target;
+        @Getter private final int capacity;
+        private final BlockingQueue<Task> queue;
+        private final AtomicLong delivered = new AtomicLong(0);
+        private final AtomicLong dropped = new AtomicLong(0);
+        private Thread thread;
+
+        Sink(RestexCaptureTarget target, int capacity) {
+            this.target = target;
+            this.capacity = capacity;
+            this.queue = capacity == 0 ? null : new ArrayBlockingQueue<>(capacity);
+        }
+
+        public boolean isQueued () { return queue != null; }
+
+        public int getQueueDepth () { return queue == null ? 0 : queue.size(); }
+
+        /** @return exchanges handed to the target, inline or by the dispatch thread */
+        public long getDelivered () { return delivered.get(); }
+
+        public long getDropped () { return dropped.get(); }
+
+        private void start(int index) {
+            thread = new Thread(this::dispatch, "restex-composite-" + index + "-" + target.getClass().getSimpleName());
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void dispatch() {
+            while (true) {
+                final Task task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (task == STOP) return;
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    log.error("dispatch: error delivering to "+target+": "+e, e);
+                }
+            }
+        }
+
+        private void offer(Task exchange) {
+            if (!queue.offer(exchange)) dropped.incrementAndGet();
+        }
+
+        private void put(Task task) {
+            try {
+                queue.put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void stop() {
+            if (thread == null) return;
+            put(STOP);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+    }
+
+    /**
+     * One exchange on its way to every target. Inline targets get each callback as it happens, queued targets
+     * get the callbacks collected and replayed by their dispatch thread. The bodies are not copied again: the
+     * buffers handed to the targets stay valid after the connection is done with them.
+     */
+    private class Exchange implements RestexCaptureTarget {
+
+        private final RestexCaptureTarget[] targets;
+        private final List<Consumer<RestexCaptureTarget>> events;
+
+        Exchange(RestexCaptureTarget[] targets) {
+            this.targets = targets;
+            boolean queued = false;
+            for (int i=0; i<targets.length; i++) queued |= targets[i] != null && sinks.get(i).isQueued();
+            this.events = queued ? new ArrayList<>() : null;
+        }
+
+        private synchronized void event(Consumer<RestexCaptureTarget> event) {
+            for (int i=0; i<targets.length; i++) {
+                if (targets[i] != null && !sinks.get(i).isQueued()) event.accept(targets[i]);
+            }
+            if (events != null) events.add(event);
+        }
+
+        // the response entity ends the exchange
+        private synchronized void last(Consumer<RestexCaptureTarget> event) {
+            if (events != null) events.add(event);
+            final List<Consumer<RestexCaptureTarget>> replay = events;
+            for (int i=0; i<targets.length; i++) {
+                final RestexCaptureTarget target = targets[i];
+                if (target == null) continue;
+                final Sink sink = sinks.get(i);
+                if (!sink.isQueued()) {
+                    event.accept(target);
+                    sink.delivered.incrementAndGet();
+                } else {
+                    sink.offer(() -> {
+                        for (Consumer<RestexCaptureTarget> e : replay) e.accept(target);
+                        sink.delivered.incrementAndGet();
+                    });
+                }
+            }
+        }
+
+        @Override public void requestUri(String method, String uri) { event(t -> t.requestUri(method, uri)); }
+        @Override public void requestHeader(String name, String value) { event(t -> t.requestHeader(name, value)); }
+        @Override public void requestEntity(String entityData) { event(t -> t.requestEntity(entityData)); }
+        @Override public void requestEntity(ByteBuffer entityData, ContentType contentType) { event(t -> t.requestEntity(entityData, contentType)); }
+        @Override public void responseStatus(int statusCode, String reasonPhrase, String protocolVersion) {
+            event(t -> t.responseStatus(statusCode, reasonPhrase, protocolVersion));
+        }
+        @Override public void responseHeader(String name, String value) { event(t -> t.responseHeader(name, value)); }
+        @Override public void exchangeTiming(ExchangeTiming timing) { event(t -> t.exchangeTiming(timing)); }
+        @Override public void responseEntity(String entityData) { last(t -> t.responseEntity(entityData)); }
+        @Override public void responseEntity(ByteBuffer entityData, ContentType contentType) { last(t -> t.responseEntity(entityData, contentType)); }
+        @Override public void setBinaryRequest(String hint) { event(t -> t.setBinaryRequest(hint)); }
+        @Override public void setBinaryResponse(String hint) { event(t -> t.setBinaryResponse(hint)); }
+
+        @Override public void commit() throws IOException { CompositeCaptureTarget.this.commit(); }
+    }
+}
@@ -0,0 +1,84 @@
+package org.cobbzilla.restex.targets;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+
+/**
+ * SHA-256 of what the docs show, for telling whether a page changed since the last run. Every value is length
+ * prefixed, so ("ab", "c") and ("a", "bc") hash differently.
+ */
+public class ContentHash {
+
+    private final MessageDigest digest;
+
+    public ContentHash () {
+        try {
+            digest = MessageDigest.getInstance(BodyStore.HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("ContentHash: "+BodyStore.HASH_ALGORITHM+" not available: "+e, e);
+        }
+    }
+
+    public ContentHash add (String value) {
+        if (value == null) return add(-1);
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        add(bytes.length);
+        digest.update(bytes);
+        return this;
+    }
+
+    public ContentHash add (long value) {
+        for (int shift=56; shift>=0; shift-=8) digest.update((byte) (value >>> shift));
+        return this;
+    }
+
+    /** adds the remaining bytes, leaving the buffer's position where it was */
+    public ContentHash add (ByteBuffer value) {
+        if (value == null) return add(-1);
+        add(value.remaining());
+        digest.update(value.duplicate());
+        return this;
+    }
+
+    /** @return the lowercase hex digest; the hash can't be added to after this */
+    public String hex () {
+        final StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return hex.toString();
+    }
+
+    /**
+     * Hashes a session's comment and exchanges: methods, URIs, headers, bodies, statuses, notes and the preview limit
+     * the bodies are shown with. Timings are left
+     * out, and so are the headers named in volatileHeaders (a case-insensitive set), which change from run to
+     * run even when nothing else does.
+     */
+    public static String of (RecordingSession session, Set<String> volatileHeaders) {
+        final ContentHash hash = new ContentHash().add(session.getContext()).add(session.getComment());
+        for (SimpleCaptureTarget capture : session.getCaptures()) {
+            hash.add(capture.getRequestMethod()).add(capture.getRequestUri());
+            hash.addHeaders(capture.getRequestHeaderFields(), volatileHeaders);
+            if (capture.getRequestBody() != null) { hash.add(capture.getRequestBody()); } else { hash.add(capture.getRequestEntity()); }
+            hash.add(capture.getBinaryRequest());
+
+            hash.add(capture.getStatusCode()).add(capture.getReasonPhrase()).add(capture.getProtocolVersion());
+            hash.addHeaders(capture.getResponseHeaderFields(), volatileHeaders);
+            if (capture.getResponseBody() != null) { hash.add(capture.getResponseBody()); } else { hash.add(capture.getResponseEntity()); }
+            hash.add(capture.getBinaryResponse());
+
+            hash.add(capture.getNote()).add(capture.getPreviewLimit());
+        }
+        return hash.hex();
+    }
+
+    private void addHeaders (CapturedHeaders headers, Set<String> volatileHeaders) {
+        for (int i=0; i<headers.size(); i++) {
+            if (volatileHeaders.contains(headers.getName(i))) continue;
+            add(headers.getName(i)).add(headers.getValue(i));
+        }
+        add(-2);
+    }
+}
@@ -0,0 +1,69 @@
+package org.cobbzilla.restex.targets;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.cobbzilla.restex.LatencyHistogram;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Everything that has been written to a docs directory, across all runs: each context file and the
+ * examples (anchors) it contains. The index is rendered from this rather than by patching index.html.
+ */
+@NoArgsConstructor
+public class DocsManifest {
+
+    public static final String MANIFEST_FILE = "restex-manifest.json";
+
+    private static final ObjectMapper JSON = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+    @Getter @Setter private SortedMap<String, Context> contexts = new TreeMap<>();
+
+    public static DocsManifest load(File baseDir) throws IOException {
+        final File file = new File(baseDir, MANIFEST_FILE);
+        return file.exists() ? JSON.readValue(file, DocsManifest.class) : new DocsManifest();
+    }
+
+    public void save(File baseDir) throws IOException {
+        final File temp = File.createTempFile(getClass().getSimpleName(), ".json", baseDir);
+        JSON.writeValue(temp, this);
+        Files.move(temp.toPath(), new File(baseDir, MANIFEST_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public Context getOrCreate(String context, String fsPath) {
+        return contexts.computeIfAbsent(context, c -> new Context(c, fsPath, new ArrayList<>(), null));
+    }
+
+    @NoArgsConstructor @AllArgsConstructor
+    public static class Context {
+        @Getter @Setter private String context;
+        @Getter @Setter private String fsPath;
+        @Getter @Setter private List<Example> examples = new ArrayList<>();
+        @Getter @Setter private LatencyHistogram.Summary latency;
+
+        /** Examples are keyed by anchor, so re-running the same test does not add it twice */
+        public boolean addExample(String anchor, String description) {
+            for (Example example : examples) {
+                if (example.getAnchor().equals(anchor)) return false;
+            }
+            return examples.add(new Example(anchor, description));
+        }
+    }
+
+    @NoArgsConstructor @AllArgsConstructor
+    public static class Example {
+        @Getter @Setter private String anchor;
+        @Getter @Setter private String description;
+    }
+}
@@ -0,0 +1,208 @@
+package org.cobbzilla.restex.targets;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.apache.http.entity.ContentType;
+import org.cobbzilla.restex.ExchangeTiming;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Appends each committed session to a binary log instead of rendering it, so capturing costs one sequential
+ * write per test. CaptureLogRenderer turns the log into HTML docs afterwards, with whatever templates you like.
+ *
+ * The log is a directory of segment files, read in name order. Every segment starts with MAGIC and FORMAT_VERSION,
+ * followed by one record per session: a long length, the session metadata, then the raw bodies the metadata refers to.
+ * Each LogCaptureTarget starts a new segment, so a run that died mid-write never has records appended after it.
+ * The segment number is picked when the file is created, so targets in other threads or JVMs can share logDir.
+ */
+public class LogCaptureTarget extends SessionCaptureTarget {
+
+    public static final int MAGIC = 0x52535458; // "RSTX"
+    public static final int FORMAT_VERSION = 1;
+
+    public static final String SEGMENT_PREFIX = "restex-";
+    public static final String SEGMENT_SUFFIX = ".log";
+
+    public static final byte BODY_NONE = 0;
+    public static final byte BODY_BYTES = 1;
+    public static final byte BODY_TEXT = 2;
+
+    @Getter private final File logDir;
+
+    // roll over to a new segment once the current one reaches this many bytes; 0 means never
+    @Getter @Setter private long segmentSize = 0;
+
+    private FileChannel channel;
+
+    public LogCaptureTarget (String logDir) { this(new File(logDir)); }
+
+    public LogCaptureTarget (File logDir) {
+        this.logDir = logDir;
+        if (!logDir.exists() && !logDir.mkdirs()) {
+            throw new IllegalArgumentException("logDir does not exist and could not be created: "+logDir.getAbsolutePath());
+        }
+    }
+
+    /** @return the segment files in logDir, in the order they were written */
+    public static List<File> segments (File logDir) {
+        final File[] files = logDir.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) return Collections.emptyList();
+        Arrays.sort(files); // segment numbers are zero-padded, so name order is write order
+        return Arrays.asList(files);
+    }
+
+    private static int segmentNumber (File f) {
+        final String name = f.getName();
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a segment file: "+f.getAbsolutePath());
+        }
+    }
+
+    private File segmentFile (int n) { return new File(logDir, SEGMENT_PREFIX + String.format("%06d", n) + SEGMENT_SUFFIX); }
+
+    @Override protected void write (RecordingSession session) throws IOException {
+        // encode the metadata up front so the record length is known; bodies are written straight from their buffers
+        final ByteArrayOutputStream meta = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(meta);
+        final List<ByteBuffer> bodies = new ArrayList<>();
+
+        writeString(out, session.getContext());
+        writeString(out, session.getComment());
+        final List<SimpleCaptureTarget> captures = session.getCaptures();
+        out.writeInt(captures.size());
+        for (SimpleCaptureTarget capture : captures) {
+            writeString(out, capture.getNote());
+
+            writeString(out, capture.getRequestMethod());
+            writeString(out, capture.getRequestUri());
+            writeHeaders(out, capture.getRequestHeaderFields());
+            writeString(out, capture.getBinaryRequest());
+            if (capture.getRequestBody() != null) {
+                writeBody(out, bodies, capture.getRequestBody(), capture.getRequestContentType());
+            } else {
+                writeText(out, capture.getRequestEntity());
+            }
+
+            out.writeInt(capture.getStatusCode());
+            writeString(out, capture.getReasonPhrase());
+            writeString(out, capture.getProtocolVersion());
+            writeHeaders(out, capture.getResponseHeaderFields());
+            writeString(out, capture.getBinaryResponse());
+            if (capture.getResponseBody() != null) {
+                writeBody(out, bodies, capture.getResponseBody(), capture.getResponseContentType());
+            } else {
+                writeText(out, capture.getResponseEntity());
+            }
+            writeTiming(out, capture.getTiming());
+        }
+        out.flush();
+
+        long length = meta.size();
+        for (ByteBuffer body : bodies) length += body.remaining();
+        final ByteBuffer head = ByteBuffer.allocate(8 + meta.size()).putLong(length).put(meta.toByteArray());
+        head.flip();
+        append(head, bodies);
+        recycle(session);
+    }
+
+    private synchronized void append (ByteBuffer head, List<ByteBuffer> bodies) throws IOException {
+        final FileChannel out = channel();
+        writeFully(out, head);
+        for (ByteBuffer body : bodies) writeFully(out, body);
+    }
+
+    private FileChannel channel () throws IOException {
+        if (channel != null && segmentSize > 0 && channel.size() >= segmentSize) {
+            channel.close();
+            channel = null;
+        }
+        if (channel == null) {
+            channel = openSegment();
+            final ByteBuffer header = ByteBuffer.allocate(8).putInt(MAGIC).putInt(FORMAT_VERSION);
+            header.flip();
+            writeFully(channel, header);
+        }
+        return channel;
+    }
+
+    // another target may create the next segment between our listing and our open, then we just take the one after
+    private FileChannel openSegment () throws IOException {
+        final List<File> segments = segments(logDir);
+        int n = segments.isEmpty() ? 0 : segmentNumber(segments.get(segments.size()-1)) + 1;
+        while (true) {
+            try {
+                return FileChannel.open(segmentFile(n).toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            } catch (FileAlreadyExistsException e) {
+                n++;
+            }
+        }
+    }
+
+    private static void writeFully (FileChannel channel, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) channel.write(data);
+    }
+
+    private static void writeString (DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static void writeHeaders (DataOutputStream out, CapturedHeaders headers) throws IOException {
+        out.writeInt(headers.size());
+        for (int i=0; i<headers.size(); i++) {
+            writeString(out, headers.getName(i));
+            writeString(out, headers.getValue(i));
+        }
+    }
+
+    private static void writeBody (DataOutputStream out, List<ByteBuffer> bodies, ByteBuffer body, ContentType contentType) throws IOException {
+        out.writeByte(BODY_BYTES);
+        writeString(out, contentType == null ? null : contentType.toString());
+        out.writeInt(body.remaining());
+        bodies.add(body.duplicate());
+    }
+
+    private static void writeTiming (DataOutputStream out, ExchangeTiming timing) throws IOException {
+        out.writeBoolean(timing != null);
+        if (timing == null) return;
+        out.writeLong(timing.getRequestStarted());
+        out.writeLong(timing.getRequestHeaderSent());
+        out.writeLong(timing.getRequestSent());
+        out.writeLong(timing.getResponseHeaderReceived());
+        out.writeLong(timing.getResponseReceived());
+        out.writeLong(timing.getRequestBytes());
+        out.writeLong(timing.getResponseBytes());
+    }
+
+    private static void writeText (DataOutputStream out, String text) throws IOException {
+        if (text == null) {
+            out.writeByte(BODY_NONE);
+        } else {
+            out.writeByte(BODY_TEXT);
+            writeString(out, text);
+        }
+    }
+
+    @Override public synchronized void close () throws IOException {
+        commitOpenSessions();
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+}
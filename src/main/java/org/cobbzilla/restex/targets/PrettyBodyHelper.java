@@ -0,0 +1,207 @@
+package org.cobbzilla.restex.targets;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.util.DefaultIndenter;
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import com.github.jknack.handlebars.Helper;
+import com.github.jknack.handlebars.Options;
+import org.apache.http.entity.ContentType;
+import org.cobbzilla.restex.RestexEntities;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Locale;
+
+/**
+ * Writes a captured body into the page while the template renders: JSON is pretty-printed by streaming it through
+ * Jackson's parser and generator, anything else is copied as it is, HTML-escaped either way. Nothing is formatted at
+ * capture time and the body never becomes one big String, the text goes straight to the template's writer.
+ * The helper escapes for itself, so use it with triple braces:
+ *
+ *     {{{prettyBody this "response"}}}
+ *     {{{prettyBody this "request" maxLines=200}}}
+ *
+ * At most the capture's preview limit of bytes is read (a maxBytes parameter overrides it, except for gzip or
+ * deflate bodies) and at most maxLines lines are written, with a note saying what was left out.
+ */
+public class PrettyBodyHelper implements Helper<Object> {
+
+    public static final String NAME = "prettyBody";
+    public static final int DEFAULT_MAX_LINES = 2000;
+
+    public static final PrettyBodyHelper INSTANCE = new PrettyBodyHelper();
+
+    private static final JsonFactory json = new JsonFactory()
+            .configure(JsonParser.Feature.AUTO_CLOSE_SOURCE, false)
+            .configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false)
+            .configure(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT, false);
+
+    // Jackson's default layout, but with the same line ending on every platform
+    private static final DefaultPrettyPrinter printer = new DefaultPrettyPrinter().withObjectIndenter(new DefaultIndenter("  ", "\n"));
+
+    @Override public Object apply (Object context, Options options) throws IOException {
+        if (!(context instanceof SimpleCaptureTarget)) return "";
+        final SimpleCaptureTarget capture = (SimpleCaptureTarget) context;
+        final boolean request = "request".equals(options.param(0, "response"));
+        final int maxBytes = options.hash("maxBytes", capture.getPreviewLimit());
+        final int maxLines = options.hash("maxLines", DEFAULT_MAX_LINES);
+
+        final ByteBuffer body = request ? capture.getRequestBody() : capture.getResponseBody();
+        final String binary = request ? capture.getBinaryRequest() : capture.getBinaryResponse();
+        final ContentType contentType = contentType(request ? capture.getRequestContentType() : capture.getResponseContentType(),
+                                                    request ? capture.getRequestHeaderFields() : capture.getResponseHeaderFields());
+        final String contentEncoding = request ? capture.getRequestContentEncoding() : capture.getResponseContentEncoding();
+
+        final Options.Buffer buffer = options.buffer();
+        final HtmlWriter out = new HtmlWriter(buffer, maxLines);
+        final Source source;
+        final long omitted;
+        if (body != null && binary == null && RestexEntities.isIdentity(contentEncoding)) {
+            final ByteBuffer preview = body.duplicate();
+            if (preview.remaining() > maxBytes) preview.limit(preview.position() + maxBytes);
+            source = () -> new InputStreamReader(new ByteBufferBackedInputStream(preview.duplicate()), RestexEntities.charset(contentType));
+            omitted = body.remaining() - preview.remaining();
+        } else {
+            final String entity = request ? capture.getRequestEntity() : capture.getResponseEntity();
+            if (entity == null) return buffer;
+            if (binary != null) {
+                out.note(entity);
+                return buffer;
+            }
+            // compressed bodies are formatted from the preview the capture decodes, which is already bounded
+            source = () -> new StringReader(entity);
+            omitted = 0;
+        }
+
+        if (isJson(contentType)) {
+            formatJson(source, out);
+        } else {
+            try (Reader reader = source.open()) { copy(reader, out); }
+        }
+        if (out.isCapped()) {
+            out.note("\n... (cut at " + maxLines + " lines)");
+        } else if (omitted > 0) {
+            out.note("\n... (" + omitted + " more bytes)");
+        }
+        return buffer;
+    }
+
+    /** @return the content type captured with the body, or else the one in the Content-Type header, if any */
+    static ContentType contentType (ContentType captured, CapturedHeaders headers) {
+        if (captured != null) return captured;
+        final String header = headers.get("Content-Type");
+        if (header == null) return null;
+        try {
+            return ContentType.parse(header);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    static boolean isJson (ContentType contentType) {
+        return contentType != null && contentType.getMimeType().toLowerCase(Locale.ROOT).contains("json");
+    }
+
+    /**
+     * Copies JSON tokens from the parser to a pretty-printing generator. If the body stops being valid JSON, what was
+     * formatted so far stays, and the rest is copied as it was received, starting after the last good token.
+     */
+    private static void formatJson (Source source, HtmlWriter out) throws IOException {
+        long formatted = 0;
+        boolean invalid = false;
+        try (Reader reader = source.open(); JsonParser parser = json.createParser(reader)) {
+            final JsonGenerator generator = json.createGenerator(out).setPrettyPrinter(printer.createInstance());
+            try {
+                while (!out.isCapped() && parser.nextToken() != null) {
+                    generator.copyCurrentEvent(parser);
+                    formatted = parser.currentLocation().getCharOffset();
+                }
+            } catch (JsonProcessingException e) {
+                invalid = true;
+            } finally {
+                generator.close();
+            }
+        }
+        if (!invalid || out.isCapped()) return;
+        try (Reader reader = source.open()) {
+            long skipped = 0;
+            while (skipped < formatted) {
+                final long n = reader.skip(formatted - skipped);
+                if (n <= 0) break;
+                skipped += n;
+            }
+            copy(reader, out);
+        }
+    }
+
+    private static void copy (Reader reader, HtmlWriter out) throws IOException {
+        final char[] chunk = new char[4096];
+        int n;
+        while (!out.isCapped() && (n = reader.read(chunk)) != -1) out.write(chunk, 0, n);
+    }
+
+    private interface Source { Reader open () throws IOException; }
+
+    /**
+     * HTML-escapes into the template output, and stops taking text after maxLines lines (0 for no limit). Once it
+     * is capped, whatever is written to it is dropped, so the loops feeding it check isCapped() to stop early.
+     */
+    private static class HtmlWriter extends Writer {
+        private final Appendable out;
+        private final int maxLines;
+        private int lines = 0;
+        private boolean capped = false;
+
+        HtmlWriter (Appendable out, int maxLines) { this.out = out; this.maxLines = maxLines; }
+
+        void note (String text) throws IOException { escape(text, 0, text.length()); }
+
+        boolean isCapped () { return capped; }
+
+        @Override public void write (char[] chars, int offset, int length) throws IOException {
+            if (capped) return;
+            final CharBuffer text = CharBuffer.wrap(chars);
+            int end = offset + length;
+            if (maxLines > 0) {
+                for (int i=offset; i<end; i++) {
+                    if (chars[i] == '\n' && ++lines >= maxLines) {
+                        capped = true;
+                        end = i;
+                        break;
+                    }
+                }
+            }
+            escape(text, offset, end);
+        }
+
+        // runs of plain text are passed on in one append
+        private void escape (CharSequence text, int start, int end) throws IOException {
+            int plain = start;
+            for (int i=start; i<end; i++) {
+                final String entity;
+                switch (text.charAt(i)) {
+                    case '&': entity = "&amp;"; break;
+                    case '<': entity = "&lt;"; break;
+                    case '>': entity = "&gt;"; break;
+                    case '"': entity = "&quot;"; break;
+                    default: continue;
+                }
+                out.append(text.subSequence(plain, i)).append(entity);
+                plain = i + 1;
+            }
+            out.append(text.subSequence(plain, end));
+        }
+
+        @Override public void flush () {}
+        @Override public void close () {}
+    }
+}
@@ -0,0 +1,131 @@
+package org.cobbzilla.restex.targets;
+
+import lombok.Getter;
+import org.apache.http.entity.ContentType;
+import org.cobbzilla.restex.ExchangeTiming;
+import org.cobbzilla.restex.RestexCaptureTarget;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One recording started by SessionCaptureTarget.startRecording. Each session has its own captures and notes,
+ * so tests running in parallel against the same capture target do not see each other's exchanges.
+ *
+ * A session is bound to the thread that started it. To record exchanges made from another thread,
+ * call bind() on that thread.
+ *
+ * Exchanges that go through forExchange() each fill in their own capture, which joins the session when its
+ * response entity arrives. Exchanges that overlap, like async requests or HTTP/2 streams sharing a connection,
+ * are never mixed up.
+ */
+public class RecordingSession implements RestexCaptureTarget {
+
+    private final SessionCaptureTarget owner;
+
+    @Getter private final String context;
+    @Getter private final String comment;
+    @Getter private volatile List<SimpleCaptureTarget> captures = new ArrayList<>();
+    @Getter private volatile boolean recording = true;
+
+    private SimpleCaptureTarget currentCapture = new SimpleCaptureTarget();
+
+    RecordingSession(SessionCaptureTarget owner, String context, String comment) {
+        this.owner = owner;
+        this.context = context;
+        this.comment = comment;
+    }
+
+    public void bind () { owner.bind(this); }
+    public void unbind () { owner.unbind(this); }
+
+    public synchronized void addNote (String note) { if (recording) currentCapture.appendNote(note); }
+
+    // the notes so far lead up to this exchange, even if it completes after more notes were added
+    @Override public synchronized RestexCaptureTarget forExchange() {
+        if (!recording) return null;
+        final ExchangeCapture capture = owner.newExchangeCapture();
+        capture.session = this;
+        capture.setNote(currentCapture.getNote());
+        currentCapture.setNote(null);
+        return capture;
+    }
+
+    @Override public synchronized void requestUri(String method, String uri) { if (recording) currentCapture.requestUri(method, uri); }
+    @Override public synchronized void requestHeader(String name, String value) { if (recording) currentCapture.requestHeader(name, value); }
+    @Override public synchronized void requestEntity(String entityData) { if (recording) currentCapture.requestEntity(entityData); }
+    @Override public synchronized void requestEntity(ByteBuffer entityData, ContentType contentType) {
+        if (recording) currentCapture.requestEntity(entityData, contentType);
+    }
+    @Override public synchronized void responseStatus(int statusCode, String reasonPhrase, String protocolVersion) {
+        if (recording) currentCapture.responseStatus(statusCode, reasonPhrase, protocolVersion);
+    }
+    @Override public synchronized void responseHeader(String name, String value) { if (recording) currentCapture.responseHeader(name, value); }
+    @Override public synchronized void exchangeTiming(ExchangeTiming timing) { if (recording) currentCapture.exchangeTiming(timing); }
+    @Override public synchronized void responseEntity(String entityData) {
+        if (recording) {
+            currentCapture.responseEntity(entityData);
+            nextCapture();
+        }
+    }
+    @Override public synchronized void responseEntity(ByteBuffer entityData, ContentType contentType) {
+        if (recording) {
+            currentCapture.responseEntity(entityData, contentType);
+            nextCapture();
+        }
+    }
+
+    // used when replaying captures that were recorded somewhere else, like a capture log
+    synchronized void addCapture(SimpleCaptureTarget capture) { if (recording) captures.add(capture); }
+
+    private void nextCapture() {
+        captures.add(currentCapture);
+        currentCapture = new SimpleCaptureTarget();
+    }
+
+    private synchronized void completed(SimpleCaptureTarget capture) { if (recording) captures.add(capture); }
+
+    /**
+     * Hands the captures over to be recycled: a stopped session that has been written out has no further use
+     * for them, and from here on it has none.
+     */
+    synchronized List<SimpleCaptureTarget> releaseCaptures() {
+        if (recording) throw new IllegalStateException("releaseCaptures: still recording "+this);
+        final List<SimpleCaptureTarget> released = captures;
+        captures = Collections.emptyList();
+        return released;
+    }
+
+    // responseEntity(ByteBuffer, ContentType) ends up here as well
+    static class ExchangeCapture extends SimpleCaptureTarget {
+        private RecordingSession session;
+
+        @Override public void responseEntity(String entityData) {
+            super.responseEntity(entityData);
+            session.completed(this);
+        }
+
+        @Override public void reset() {
+            super.reset();
+            session = null;
+        }
+    }
+
+    @Override public synchronized void setBinaryRequest(String hint) { if (recording) currentCapture.setBinaryRequest(hint); }
+    @Override public synchronized void setBinaryResponse(String hint) { if (recording) currentCapture.setBinaryResponse(hint); }
+
+    @Override public void commit() throws IOException { owner.commit(this); }
+
+    /** Stops recording; from here on the session is an immutable snapshot that can be rendered on any thread */
+    synchronized void stop() {
+        if (!recording) return;
+        recording = false;
+        currentCapture = null;
+        captures = Collections.unmodifiableList(captures);
+    }
+
+    @Override public String toString() { return context + "/" + comment + " (" + captures.size() + " captures)"; }
+}
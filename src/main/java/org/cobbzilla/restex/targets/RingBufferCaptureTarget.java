@@ -0,0 +1,378 @@
+package org.cobbzilla.restex.targets;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import lombok.Getter;
+import lombok.Setter;
+import org.apache.http.entity.ContentType;
+import org.cobbzilla.restex.ExchangeTiming;
+import org.cobbzilla.restex.RestexCaptureTarget;
+import org.cobbzilla.restex.RestexEntities;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.cobbzilla.restex.targets.TemplateCaptureTarget.*;
+
+/**
+ * A flight recorder: keeps the last N exchanges in a fixed ring of preallocated slots, so it can stay attached
+ * to a production HttpClient and be dumped when something goes wrong.
+ *
+ * Recording never blocks and never allocates beyond a small handle per exchange and copying body bytes into the
+ * slot's own arrays. Each slot is guarded by a sequence number: odd while an exchange is being written into it, even
+ * once it is complete. The handle remembers the number it claimed the slot at, and once the slot has been taken
+ * over, writes through it are ignored. snapshot() copies every complete slot and throws away any copy whose
+ * sequence changed while it was reading. If every slot is busy, the exchange is dropped and counted in getDropped().
+ */
+public class RingBufferCaptureTarget implements RestexCaptureTarget {
+
+    public static final int DEFAULT_CAPACITY = 256;
+    public static final int DEFAULT_MAX_BODY_BYTES = 16 * 1024;
+    public static final int DEFAULT_MAX_HEADERS = 64;
+
+    // a slot that has been busy this long belongs to an exchange that failed midway, and can be taken over
+    public static final long STALE_SLOT_NANOS = 60_000_000_000L;
+
+    private static final int MAX_CLAIM_ATTEMPTS = 4;
+
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    // how long a slot may stay busy before it is taken over
+    @Getter @Setter private volatile long staleSlotNanos = STALE_SLOT_NANOS;
+
+    // for callers that do not go through forExchange()
+    private final ThreadLocal<Claim> current = new ThreadLocal<>();
+
+    public RingBufferCaptureTarget () { this(DEFAULT_CAPACITY, DEFAULT_MAX_BODY_BYTES, DEFAULT_MAX_HEADERS); }
+
+    /** @param capacity number of exchanges kept, rounded up to a power of two */
+    public RingBufferCaptureTarget (int capacity, int maxBodyBytes, int maxHeaders) {
+        final int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        slots = new Slot[size];
+        for (int i=0; i<size; i++) slots[i] = new Slot(maxBodyBytes, maxHeaders);
+        mask = size - 1;
+    }
+
+    public int getCapacity () { return slots.length; }
+
+    public long getRecorded () { return next.get(); }
+
+    public long getDropped () { return dropped.get(); }
+
+    @Override public RestexCaptureTarget forExchange() {
+        for (int i=0; i<MAX_CLAIM_ATTEMPTS; i++) {
+            final long seq = next.getAndIncrement();
+            final Slot slot = slots[(int) (seq & mask)];
+            final long version = slot.claim(seq, staleSlotNanos);
+            if (version != -1) return new Claim(slot, version);
+        }
+        dropped.incrementAndGet();
+        return null;
+    }
+
+    @Override public void requestUri(String method, String uri) {
+        final Claim claim = (Claim) forExchange();
+        if (claim == null) {
+            current.remove();
+        } else {
+            current.set(claim);
+            claim.requestUri(method, uri);
+        }
+    }
+
+    @Override public void requestHeader(String name, String value) { final Claim c = current.get(); if (c != null) c.requestHeader(name, value); }
+    @Override public void requestEntity(String entityData) { final Claim c = current.get(); if (c != null) c.requestEntity(entityData); }
+    @Override public void requestEntity(ByteBuffer entityData, ContentType contentType) {
+        final Claim c = current.get(); if (c != null) c.requestEntity(entityData, contentType);
+    }
+    @Override public void responseStatus(int statusCode, String reasonPhrase, String protocolVersion) {
+        final Claim c = current.get(); if (c != null) c.responseStatus(statusCode, reasonPhrase, protocolVersion);
+    }
+    @Override public void responseHeader(String name, String value) { final Claim c = current.get(); if (c != null) c.responseHeader(name, value); }
+    @Override public void exchangeTiming(ExchangeTiming timing) { final Claim c = current.get(); if (c != null) c.exchangeTiming(timing); }
+    @Override public void responseEntity(String entityData) {
+        final Claim c = current.get(); if (c != null) { current.remove(); c.responseEntity(entityData); }
+    }
+    @Override public void responseEntity(ByteBuffer entityData, ContentType contentType) {
+        final Claim c = current.get(); if (c != null) { current.remove(); c.responseEntity(entityData, contentType); }
+    }
+    @Override public void setBinaryRequest(String hint) { final Claim c = current.get(); if (c != null) c.setBinaryRequest(hint); }
+    @Override public void setBinaryResponse(String hint) { final Claim c = current.get(); if (c != null) c.setBinaryResponse(hint); }
+
+    @Override public void commit() {}
+
+    /** @return copies of the completed exchanges currently in the ring, oldest first */
+    public List<SimpleCaptureTarget> snapshot () {
+        final List<Snapshot> copies = new ArrayList<>(slots.length);
+        for (Slot slot : slots) {
+            final Snapshot copy = slot.read();
+            if (copy != null) copies.add(copy);
+        }
+        copies.sort(Comparator.comparingLong(c -> c.sequence));
+        final List<SimpleCaptureTarget> captures = new ArrayList<>(copies.size());
+        for (Snapshot copy : copies) captures.add(copy.capture);
+        return captures;
+    }
+
+    /** Writes a snapshot as a JSON array, one object per exchange */
+    public void dumpJson (Writer writer) throws IOException {
+        try (JsonGenerator json = new JsonFactory().createGenerator(writer)) {
+            json.useDefaultPrettyPrinter();
+            json.writeStartArray();
+            for (SimpleCaptureTarget capture : snapshot()) {
+                json.writeStartObject();
+                json.writeStringField("method", capture.getRequestMethod());
+                json.writeStringField("uri", capture.getRequestUri());
+                json.writeObjectFieldStart("requestHeaders");
+                for (Map.Entry<String, String> h : capture.getRequestHeaders().entrySet()) json.writeStringField(h.getKey(), h.getValue());
+                json.writeEndObject();
+                json.writeStringField("requestBody", capture.getRequestEntity());
+                json.writeNumberField("status", capture.getStatusCode());
+                json.writeStringField("reason", capture.getReasonPhrase());
+                json.writeStringField("protocol", capture.getProtocolVersion());
+                json.writeObjectFieldStart("responseHeaders");
+                for (Map.Entry<String, String> h : capture.getResponseHeaders().entrySet()) json.writeStringField(h.getKey(), h.getValue());
+                json.writeEndObject();
+                json.writeStringField("responseBody", capture.getResponseEntity());
+                if (capture.getTiming() != null) {
+                    final ExchangeTiming timing = capture.getTiming();
+                    json.writeObjectFieldStart("timing");
+                    json.writeNumberField("totalNanos", timing.getTotalNanos());
+                    json.writeNumberField("sendNanos", timing.getSendNanos());
+                    json.writeNumberField("firstByteNanos", timing.getFirstByteNanos());
+                    json.writeNumberField("receiveNanos", timing.getReceiveNanos());
+                    json.writeNumberField("requestBytes", timing.getRequestBytes());
+                    json.writeNumberField("responseBytes", timing.getResponseBytes());
+                    json.writeEndObject();
+                }
+                json.writeStringField("note", capture.getNote());
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+        }
+    }
+
+    /** Writes a snapshot as a single HTML page, using the default header, entry and footer templates */
+    public void dumpHtml (Writer writer) throws IOException {
+        final Map<String, Object> http = new HashMap<>();
+        http.put("comment", "last " + slots.length + " exchanges as of " + new Date());
+        http.put("captures", snapshot());
+
+        final Map<String, Object> scope = new HashMap<>();
+        scope.put(SCOPE_HTTP, http);
+        scope.put(SCOPE_ANCHOR, "snapshot");
+        for (String name : new String[] {DEFAULT_HEADER_TEMPLATE, DEFAULT_ENTRY_TEMPLATE, DEFAULT_FOOTER_TEMPLATE}) {
+            TemplateRegistry.apply(TemplateRegistry.get(name), scope, writer);
+        }
+        writer.flush();
+    }
+
+    private static class Snapshot {
+        final long sequence;
+        final SimpleCaptureTarget capture;
+        Snapshot(long sequence, SimpleCaptureTarget capture) { this.sequence = sequence; this.capture = capture; }
+    }
+
+    /**
+     * One exchange's hold on a slot, at the (odd) version it claimed the slot at. If the slot is taken over because
+     * this exchange stalled, the version moves on and everything written through this handle is ignored.
+     */
+    private static class Claim implements RestexCaptureTarget {
+        private final Slot slot;
+        private final long version;
+
+        Claim(Slot slot, long version) { this.slot = slot; this.version = version; }
+
+        private boolean owned() { return slot.version.get() == version; }
+
+        @Override public void requestUri(String method, String uri) { if (owned()) slot.requestUri(method, uri); }
+        @Override public void requestHeader(String name, String value) { if (owned()) slot.requestHeader(name, value); }
+        @Override public void requestEntity(String entityData) { if (owned()) slot.requestEntity(entityData); }
+        @Override public void requestEntity(ByteBuffer entityData, ContentType contentType) { if (owned()) slot.requestEntity(entityData, contentType); }
+        @Override public void responseStatus(int statusCode, String reasonPhrase, String protocolVersion) {
+            if (owned()) slot.responseStatus(statusCode, reasonPhrase, protocolVersion);
+        }
+        @Override public void responseHeader(String name, String value) { if (owned()) slot.responseHeader(name, value); }
+        @Override public void exchangeTiming(ExchangeTiming timing) { if (owned()) slot.exchangeTiming(timing); }
+        @Override public void setBinaryRequest(String hint) { if (owned()) slot.setBinaryRequest(hint); }
+        @Override public void setBinaryResponse(String hint) { if (owned()) slot.setBinaryResponse(hint); }
+
+        @Override public void responseEntity(String entityData) {
+            if (!owned()) return;
+            slot.responseEntity(entityData);
+            slot.publish(version);
+        }
+
+        @Override public void responseEntity(ByteBuffer entityData, ContentType contentType) {
+            if (!owned()) return;
+            slot.responseEntity(entityData, contentType);
+            slot.publish(version);
+        }
+
+        @Override public void commit() {}
+    }
+
+    private static class Slot {
+
+        // odd while an exchange is being written, even when complete; 0 means never used
+        private final AtomicLong version = new AtomicLong(0);
+        private volatile long claimedAt;
+
+        private long sequence;
+        private long timestamp;
+        private String method;
+        private String uri;
+        private final String[] requestHeaders;
+        private int requestHeaderCount;
+        private final byte[] requestBody;
+        private int requestBodyLength;
+        private long requestBodyTotal;
+        private ContentType requestContentType;
+        private String requestText;
+        private String binaryRequest;
+
+        private int statusCode;
+        private String reasonPhrase;
+        private String protocolVersion;
+        private final String[] responseHeaders;
+        private int responseHeaderCount;
+        private final byte[] responseBody;
+        private int responseBodyLength;
+        private long responseBodyTotal;
+        private ContentType responseContentType;
+        private String responseText;
+        private String binaryResponse;
+        private ExchangeTiming timing;
+
+        Slot(int maxBodyBytes, int maxHeaders) {
+            requestHeaders = new String[maxHeaders * 2];
+            responseHeaders = new String[maxHeaders * 2];
+            requestBody = new byte[maxBodyBytes];
+            responseBody = new byte[maxBodyBytes];
+        }
+
+        /** @return the version the slot was claimed at, or -1 if it is busy */
+        long claim(long seq, long staleNanos) {
+            final long v = version.get();
+            final long now = System.nanoTime();
+            if ((v & 1) == 1 && now - claimedAt < staleNanos) return -1;
+            final long claimed = (v & 1) == 1 ? v + 2 : v + 1;
+            if (!version.compareAndSet(v, claimed)) return -1;
+            claimedAt = now;
+            sequence = seq;
+            timestamp = System.currentTimeMillis();
+            method = uri = reasonPhrase = protocolVersion = null;
+            requestText = responseText = binaryRequest = binaryResponse = null;
+            requestContentType = responseContentType = null;
+            timing = null;
+            requestHeaderCount = responseHeaderCount = requestBodyLength = responseBodyLength = statusCode = 0;
+            requestBodyTotal = responseBodyTotal = 0;
+            return claimed;
+        }
+
+        void requestUri(String method, String uri) { this.method = method; this.uri = uri; }
+
+        void requestHeader(String name, String value) {
+            if (requestHeaderCount * 2 < requestHeaders.length) {
+                requestHeaders[requestHeaderCount * 2] = name;
+                requestHeaders[requestHeaderCount * 2 + 1] = value;
+                requestHeaderCount++;
+            }
+        }
+
+        void requestEntity(String entityData) { requestText = entityData; }
+
+        void requestEntity(ByteBuffer entityData, ContentType contentType) {
+            requestContentType = contentType;
+            if (entityData == null) return;
+            requestBodyTotal = entityData.remaining();
+            requestBodyLength = (int) Math.min(requestBodyTotal, requestBody.length);
+            entityData.duplicate().get(requestBody, 0, requestBodyLength);
+        }
+
+        void responseStatus(int statusCode, String reasonPhrase, String protocolVersion) {
+            this.statusCode = statusCode; this.reasonPhrase = reasonPhrase; this.protocolVersion = protocolVersion;
+        }
+
+        void responseHeader(String name, String value) {
+            if (responseHeaderCount * 2 < responseHeaders.length) {
+                responseHeaders[responseHeaderCount * 2] = name;
+                responseHeaders[responseHeaderCount * 2 + 1] = value;
+                responseHeaderCount++;
+            }
+        }
+
+        void exchangeTiming(ExchangeTiming timing) { this.timing = timing; }
+
+        void responseEntity(String entityData) { responseText = entityData; }
+
+        void responseEntity(ByteBuffer entityData, ContentType contentType) {
+            responseContentType = contentType;
+            if (entityData != null) {
+                responseBodyTotal = entityData.remaining();
+                responseBodyLength = (int) Math.min(responseBodyTotal, responseBody.length);
+                entityData.duplicate().get(responseBody, 0, responseBodyLength);
+            }
+        }
+
+        void setBinaryRequest(String hint) { binaryRequest = hint; }
+        void setBinaryResponse(String hint) { binaryResponse = hint; }
+
+        // if the slot was taken over in the meantime, this fails and the new owner's exchange is kept
+        void publish(long claimed) { version.compareAndSet(claimed, claimed + 1); }
+
+        Snapshot read() {
+            final long before = version.get();
+            if (before == 0 || (before & 1) == 1) return null;
+
+            final SimpleCaptureTarget capture = new SimpleCaptureTarget();
+            final long seq = sequence;
+            capture.setNote("captured at " + new Date(timestamp) + truncatedNote());
+            capture.requestUri(method, uri);
+            final int reqHeaders = Math.min(requestHeaderCount, requestHeaders.length / 2);
+            for (int i=0; i<reqHeaders; i++) capture.requestHeader(requestHeaders[i*2], requestHeaders[i*2+1]);
+            capture.setBinaryRequest(binaryRequest);
+            if (requestText != null) {
+                capture.requestEntity(requestText);
+            } else {
+                // a skipped body only has its hint, an empty copy would read as an (empty) text body and clear it
+                capture.requestEntity(skipped(binaryRequest, requestBodyTotal) ? null : copyOf(requestBody, requestBodyLength), requestContentType);
+            }
+            capture.responseStatus(statusCode, reasonPhrase, protocolVersion);
+            final int respHeaders = Math.min(responseHeaderCount, responseHeaders.length / 2);
+            for (int i=0; i<respHeaders; i++) capture.responseHeader(responseHeaders[i*2], responseHeaders[i*2+1]);
+            capture.setBinaryResponse(binaryResponse);
+            capture.exchangeTiming(timing);
+            if (responseText != null) {
+                capture.responseEntity(responseText);
+            } else {
+                capture.responseEntity(skipped(binaryResponse, responseBodyTotal) ? null : copyOf(responseBody, responseBodyLength), responseContentType);
+            }
+
+            // make sure none of the reads above are moved past the second look at the version
+            VarHandle.acquireFence();
+            return version.get() == before ? new Snapshot(seq, capture) : null;
+        }
+
+        private String truncatedNote() {
+            final StringBuilder b = new StringBuilder();
+            if (requestBodyTotal > requestBodyLength) b.append("\nrequest body truncated to ").append(requestBodyLength).append(" of ").append(requestBodyTotal).append(" bytes");
+            if (responseBodyTotal > responseBodyLength) b.append("\nresponse body truncated to ").append(responseBodyLength).append(" of ").append(responseBodyTotal).append(" bytes");
+            return b.toString();
+        }
+
+        private static boolean skipped(String binaryHint, long bodyTotal) { return binaryHint != null && bodyTotal == 0; }
+
+        private static ByteBuffer copyOf(byte[] data, int length) {
+            final int len = Math.max(0, Math.min(length, data.length));
+            return ByteBuffer.wrap(Arrays.copyOf(data, len)).asReadOnlyBuffer();
+        }
+    }
+}
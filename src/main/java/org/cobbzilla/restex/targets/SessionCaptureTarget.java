@@ -0,0 +1,159 @@
+package org.cobbzilla.restex.targets;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.entity.ContentType;
+import org.cobbzilla.restex.ExchangeTiming;
+import org.cobbzilla.restex.RestexCaptureTarget;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps a RecordingSession per test and routes each exchange to the session of the thread that sent it.
+ * Subclasses decide what happens to a session once it is committed.
+ */
+@Slf4j
+public abstract class SessionCaptureTarget implements RestexCaptureTarget, Closeable {
+
+    // recording state lives in a RecordingSession per test; the session for the calling thread is found here
+    private final ThreadLocal<RecordingSession> sessions = new ThreadLocal<>();
+    private final Set<RecordingSession> openSessions = ConcurrentHashMap.newKeySet();
+
+    // off unless enabled: recycled captures must not be read once their session has been written
+    @Getter private volatile CapturePool<RecordingSession.ExchangeCapture> capturePool = null;
+
+    /** Called once for every committed session, after it has stopped recording */
+    protected abstract void write (RecordingSession session) throws IOException;
+
+    /**
+     * Recycles captures: once a committed session has been written, its exchange captures go back to a pool of up
+     * to maxSize for later exchanges to fill in, and the session is left with no captures. Only enable this if
+     * nothing looks at a session's captures after committing it.
+     */
+    public synchronized void enableCapturePool (int maxSize) {
+        if (capturePool == null) capturePool = new CapturePool<>(maxSize, RecordingSession.ExchangeCapture::new);
+    }
+
+    RecordingSession.ExchangeCapture newExchangeCapture () {
+        final CapturePool<RecordingSession.ExchangeCapture> pool = capturePool;
+        return pool == null ? new RecordingSession.ExchangeCapture() : pool.acquire();
+    }
+
+    /** Called by subclasses once a committed session has been written and its captures are no longer needed */
+    protected void recycle (RecordingSession session) {
+        final CapturePool<RecordingSession.ExchangeCapture> pool = capturePool;
+        if (pool == null) return;
+        for (SimpleCaptureTarget capture : session.releaseCaptures()) {
+            if (capture instanceof RecordingSession.ExchangeCapture) pool.release((RecordingSession.ExchangeCapture) capture);
+        }
+    }
+
+    /**
+     * Starts a new recording session and binds it to the calling thread. If the calling thread was already
+     * recording, that session is committed first.
+     */
+    public RecordingSession startRecording (String context, String comment) {
+        final RecordingSession current = sessions.get();
+        if (current != null && current.isRecording()) {
+            log.warn("startRecording: cannot start "+context+"/"+comment+", already recording "+current.getContext()+"/"+current.getComment());
+            try {
+                if (!current.getCaptures().isEmpty()) commit(current);
+            } catch (IOException e) {
+                log.error("startRecording: error committing docs: "+e);
+            } finally {
+                discard(current);
+            }
+        }
+        final RecordingSession session = newSession(context, comment);
+        bind(session);
+        return session;
+    }
+
+    /** Starts a new recording session that is not bound to any thread. Call bind() on the session to use it. */
+    public RecordingSession newSession (String context, String comment) {
+        final RecordingSession session = new RecordingSession(this, context, comment);
+        openSessions.add(session);
+        return session;
+    }
+
+    public void bind (RecordingSession session) { sessions.set(session); }
+
+    public void unbind (RecordingSession session) { if (sessions.get() == session) sessions.remove(); }
+
+    /** @return the recording session bound to the calling thread, or null if the thread is not recording */
+    public RecordingSession getSession () {
+        final RecordingSession session = sessions.get();
+        return session != null && session.isRecording() ? session : null;
+    }
+
+    public boolean isRecording () { return getSession() != null; }
+
+    public String getContext () { final RecordingSession session = getSession(); return session == null ? "" : session.getContext(); }
+    public String getComment () { final RecordingSession session = getSession(); return session == null ? "" : session.getComment(); }
+    public List<SimpleCaptureTarget> getCaptures () {
+        final RecordingSession session = getSession();
+        return session == null ? Collections.<SimpleCaptureTarget>emptyList() : session.getCaptures();
+    }
+
+    @Override public RestexCaptureTarget forExchange() { final RecordingSession s = getSession(); return s == null ? null : s.forExchange(); }
+
+    @Override public void requestUri(String method, String uri) { final RecordingSession s = getSession(); if (s != null) s.requestUri(method, uri); }
+    @Override public void requestHeader(String name, String value) { final RecordingSession s = getSession(); if (s != null) s.requestHeader(name, value); }
+    @Override public void requestEntity(String entityData) { final RecordingSession s = getSession(); if (s != null) s.requestEntity(entityData); }
+    @Override public void requestEntity(ByteBuffer entityData, ContentType contentType) {
+        final RecordingSession s = getSession(); if (s != null) s.requestEntity(entityData, contentType);
+    }
+    @Override public void responseStatus(int statusCode, String reasonPhrase, String protocolVersion) {
+        final RecordingSession s = getSession(); if (s != null) s.responseStatus(statusCode, reasonPhrase, protocolVersion);
+    }
+    @Override public void responseHeader(String name, String value) { final RecordingSession s = getSession(); if (s != null) s.responseHeader(name, value); }
+    @Override public void exchangeTiming(ExchangeTiming timing) { final RecordingSession s = getSession(); if (s != null) s.exchangeTiming(timing); }
+    @Override public void responseEntity(String entityData) { final RecordingSession s = getSession(); if (s != null) s.responseEntity(entityData); }
+    @Override public void responseEntity(ByteBuffer entityData, ContentType contentType) {
+        final RecordingSession s = getSession(); if (s != null) s.responseEntity(entityData, contentType);
+    }
+
+    public void addNote (String note) { final RecordingSession s = getSession(); if (s != null) s.addNote(note); }
+
+    @Override public void setBinaryRequest (String type) { final RecordingSession s = getSession(); if (s != null) s.setBinaryRequest(type); }
+    @Override public void setBinaryResponse (String type) { final RecordingSession s = getSession(); if (s != null) s.setBinaryResponse(type); }
+
+    /** Commits the recording session bound to the calling thread */
+    public void commit () throws IOException {
+        final RecordingSession session = getSession();
+        if (session == null) {
+            log.warn("No context name set (not committing).");
+            return;
+        }
+        commit(session);
+    }
+
+    public void commit (RecordingSession session) throws IOException {
+        discard(session);
+        write(session);
+    }
+
+    /** Stops the recording session bound to the calling thread, without committing it */
+    public void reset() {
+        final RecordingSession session = sessions.get();
+        if (session != null) discard(session);
+    }
+
+    protected void discard(RecordingSession session) {
+        session.stop();
+        openSessions.remove(session);
+        unbind(session);
+    }
+
+    protected void commitOpenSessions () throws IOException {
+        for (RecordingSession session : new ArrayList<>(openSessions)) commit(session);
+    }
+
+}
@@ -3,11 +3,13 @@ package org.cobbzilla.restex.targets;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.ToString;
+import org.apache.http.entity.ContentType;
+import org.cobbzilla.restex.ExchangeTiming;
 import org.cobbzilla.restex.RestexCaptureTarget;
+import org.cobbzilla.restex.RestexEntities;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
 
@@ -20,37 +22,87 @@ public class SimpleCaptureTarget implements RestexCaptureTarget {
 
     @Getter @Setter private String requestMethod;
     @Getter @Setter private String requestUri;
-    @Getter @Setter private Map<String, String> requestHeaders = new LinkedHashMap<>();
-    @Getter @Setter private Map<String, String> responseHeaders = new LinkedHashMap<>();
 
-    @Getter @Setter private String requestEntity;
-    @Getter @Setter private String responseEntity;
+    // in wire order, repeats included; cleared in place by reset() so a recycled capture keeps its arrays
+    @Getter private final CapturedHeaders requestHeaderFields = new CapturedHeaders();
+    @Getter private final CapturedHeaders responseHeaderFields = new CapturedHeaders();
+
+    /** @return a copy of the request headers as a map, where a repeated header only keeps its last value */
+    public Map<String, String> getRequestHeaders () { return requestHeaderFields.toMap(); }
+    public void setRequestHeaders (Map<String, String> headers) { requestHeaderFields.setAll(headers); }
+
+    /** @return a copy of the response headers as a map, where a repeated header only keeps its last value */
+    public Map<String, String> getResponseHeaders () { return responseHeaderFields.toMap(); }
+    public void setResponseHeaders (Map<String, String> headers) { responseHeaderFields.setAll(headers); }
+
+    @Setter private String requestEntity;
+    @Setter private String responseEntity;
+
+    // raw bytes as captured, only decoded if something asks for the entity as text
+    @Getter private ByteBuffer requestBody;
+    @Getter private ByteBuffer responseBody;
+    @Getter private ContentType requestContentType;
+    @Getter private ContentType responseContentType;
+
+    // bodies larger than this are only shown as a preview, with the full body written to a file alongside the docs
+    public static final int DEFAULT_PREVIEW_LIMIT = 64 * 1024;
+    @Getter private int previewLimit = DEFAULT_PREVIEW_LIMIT;
+    @Getter @Setter private String requestBodyFile;
+    @Getter @Setter private String responseBodyFile;
+    @Getter @Setter private String requestBodyHash;
+    @Getter @Setter private String responseBodyHash;
+
+    // a preview already decoded from the body is decoded again with the new limit
+    public void setPreviewLimit (int limit) {
+        previewLimit = limit;
+        if (requestBody != null && binaryRequest == null) requestEntity = null;
+        if (responseBody != null && binaryResponse == null) responseEntity = null;
+    }
+
+    // bodies are kept as they went over the wire, and only decoded (up to the preview limit) when shown as text
+    public String getRequestContentEncoding () { return requestHeaderFields.get("Content-Encoding"); }
+    public String getResponseContentEncoding () { return responseHeaderFields.get("Content-Encoding"); }
+
+    public String getRequestEntity () {
+        if (requestEntity == null && requestBody != null) requestEntity = RestexEntities.decodePreview(requestBody, requestContentType, getRequestContentEncoding(), previewLimit);
+        return requestEntity;
+    }
+
+    public String getResponseEntity () {
+        if (responseEntity == null && responseBody != null) responseEntity = RestexEntities.decodePreview(responseBody, responseContentType, getResponseContentEncoding(), previewLimit);
+        return responseEntity;
+    }
+
+    public long getRequestBodySize () { return requestBody == null ? 0 : requestBody.remaining(); }
+    public long getResponseBodySize () { return responseBody == null ? 0 : responseBody.remaining(); }
+
+    public boolean isRequestTruncated () { return getRequestBodySize() > previewLimit; }
+    public boolean isResponseTruncated () { return getResponseBodySize() > previewLimit; }
 
     @Getter @Setter private String binaryRequest;
     @Getter @Setter private String binaryResponse;
 
+    @Getter @Setter private ExchangeTiming timing;
+
     @Getter @Setter private String note;
     public void appendNote (String n) { if (note == null) { note = n ; } else { note += "\n" + n; } }
 
-    public List<String> getRequestHeaderList () { return buildHeaderList(requestHeaders); }
-    public List<String> getResponseHeaderList () { return buildHeaderList(responseHeaders); }
+    public List<String> getRequestHeaderList () { return requestHeaderFields.getLines(); }
+    public List<String> getResponseHeaderList () { return responseHeaderFields.getLines(); }
 
     public String getResponseLine () { return statusCode + " " + (reasonPhrase == null ? "" : reasonPhrase) + " " + protocolVersion; }
 
-    private List<String> buildHeaderList(Map<String, String> headers) {
-        List<String> headerList = new ArrayList<>();
-        for (String header : headers.keySet()) {
-            headerList.add(header + ": " + headers.get(header));
-        }
-        return headerList;
-    }
-
+    // a new exchange: when a target is reused, the last exchange's headers and binary hints must not carry over
     @Override public void requestUri (String method, String uri) {
         setRequestMethod(method);
         setRequestUri(uri);
+        requestHeaderFields.clear();
+        responseHeaderFields.clear();
+        binaryRequest = null;
+        binaryResponse = null;
     }
 
-    @Override public void requestHeader(String name, String value) { requestHeaders.put(name, value); }
+    @Override public void requestHeader(String name, String value) { requestHeaderFields.add(name, value); }
 
     @Override public void requestEntity(String entityData) {
         if (binaryRequest != null) {
@@ -60,11 +112,25 @@ public class SimpleCaptureTarget implements RestexCaptureTarget {
         }
     }
 
+    @Override public void requestEntity(ByteBuffer entityData, ContentType contentType) {
+        requestBody = entityData;
+        requestContentType = contentType;
+        if (entityData != null && RestexEntities.isBinary(contentType)) {
+            setBinaryRequest(RestexEntities.binaryHint(entityData, contentType));
+        } else if (entityData != null && !RestexEntities.isDecodable(getRequestContentEncoding())) {
+            setBinaryRequest(RestexEntities.encodedHint(entityData, contentType, getRequestContentEncoding()));
+        } else if (entityData != null) {
+            // a text body, so a hint left over from an earlier exchange on this target no longer applies
+            setBinaryRequest(null);
+        }
+        requestEntity((String) null);
+    }
+
     @Override public void responseStatus(int statusCode, String reasonPhrase, String protocolVersion) {
         this.statusCode = statusCode; this.reasonPhrase = reasonPhrase; this.protocolVersion = protocolVersion;
     }
 
-    @Override public void responseHeader(String name, String value) { responseHeaders.put(name, value); }
+    @Override public void responseHeader(String name, String value) { responseHeaderFields.add(name, value); }
 
     @Override public void responseEntity(String entityData) {
         if (binaryResponse != null) {
@@ -74,19 +140,48 @@ public class SimpleCaptureTarget implements RestexCaptureTarget {
         }
     }
 
+    @Override public void responseEntity(ByteBuffer entityData, ContentType contentType) {
+        responseBody = entityData;
+        responseContentType = contentType;
+        if (entityData != null && RestexEntities.isBinary(contentType)) {
+            setBinaryResponse(RestexEntities.binaryHint(entityData, contentType));
+        } else if (entityData != null && !RestexEntities.isDecodable(getResponseContentEncoding())) {
+            setBinaryResponse(RestexEntities.encodedHint(entityData, contentType, getResponseContentEncoding()));
+        } else if (entityData != null) {
+            setBinaryResponse(null);
+        }
+        responseEntity((String) null);
+    }
+
+    @Override public void exchangeTiming(ExchangeTiming timing) { this.timing = timing; }
+
     @Override public void commit() throws IOException {}
 
     public void reset () {
+        requestMethod = null;
         requestUri = null;
-        requestHeaders = new LinkedHashMap<>();
+        requestHeaderFields.clear();
         requestEntity = null;
+        requestBody = null;
+        requestBodyFile = null;
+        requestBodyHash = null;
+        requestContentType = null;
+        binaryRequest = null;
 
         statusCode = -1;
         reasonPhrase = null;
         protocolVersion = null;
 
-        responseHeaders = new LinkedHashMap<>();
+        responseHeaderFields.clear();
         responseEntity = null;
+        responseBody = null;
+        responseBodyFile = null;
+        responseBodyHash = null;
+        responseContentType = null;
+        binaryResponse = null;
+
+        timing = null;
+        note = null;
     }
 
 }
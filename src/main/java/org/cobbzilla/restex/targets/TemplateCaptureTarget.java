@@ -10,13 +10,23 @@ import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
-import org.cobbzilla.restex.RestexCaptureTarget;
+import org.cobbzilla.restex.LatencyHistogram;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Slf4j
-public class TemplateCaptureTarget implements RestexCaptureTarget {
+public class TemplateCaptureTarget extends SessionCaptureTarget {
 
     public static final String SCOPE_HTTP = "http";
     public static final String SCOPE_ANCHOR = "anchor";
@@ -24,7 +34,19 @@ public class TemplateCaptureTarget implements RestexCaptureTarget {
     public static final String HTML_SUFFIX = ".html";
 
     public static final String FOOTER_START = "@@FOOTER@@";
+    public static final String FOOTER_OFFSETS_FILE = ".restex-footers.properties";
+    public static final String BODIES_DIR = "bodies";
     public static final String INDEX_INSERTION_POINT = "@@MORE-INDEX-FILES@@";
+    public static final int DEFAULT_INLINE_LIMIT = 4 * 1024;
+    public static final String CONTENT_HASHES_FILE = ".restex-hashes.properties";
+    public static final long WRITE_BEHIND_KEEP_ALIVE_MILLIS = 1000;
+    public static final int CLOSE_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+    public static final List<String> DEFAULT_VOLATILE_HEADERS = Collections.unmodifiableList(Arrays.asList(
+            "Date", "Expires", "Last-Modified", "Age", "X-Request-Id"));
+
+    private static final String HASH_PAGE = "page.";
+    private static final String HASH_EXAMPLE = "example.";
+    private static final String HASH_INDEX = "index";
 
     public static final String DEFAULT_INDEX_TEMPLATE = "defaultIndex";
     public static final String DEFAULT_INDEX_MORE_TEMPLATE = "defaultIndexMore";
@@ -40,16 +62,53 @@ public class TemplateCaptureTarget implements RestexCaptureTarget {
     private final Template footerTemplate;
     private final Template entryTemplate;
 
-    private SortedSet<ContextFile> contextFiles = new TreeSet<>();
-    private Map<String, ContextFile> contextFileMap = new HashMap<>();
-    private final Set<File> filesOpen = new HashSet<>();
-
-    // current state, initialized in startRecording, reset in commit
-    private SimpleCaptureTarget currentCapture = null;
-    @Getter private final List<SimpleCaptureTarget> captures = new ArrayList<>();
-    private boolean recording = false;
-    @Getter private String context = "";
-    @Getter private String comment = "";
+    private final SortedSet<ContextFile> contextFiles = new ConcurrentSkipListSet<>();
+    private final Map<String, ContextFile> contextFileMap = new ConcurrentHashMap<>();
+    private final Set<File> filesOpen = ConcurrentHashMap.newKeySet();
+
+    // in append-only mode, each context file stays open until close() and its footer is written exactly once
+    @Getter @Setter private boolean appendOnly = false;
+    private final Map<File, ContextOutput> outputs = new ConcurrentHashMap<>();
+    private Properties footerOffsets = null;
+    private final Object footerOffsetsLock = new Object();
+
+    // when set, the index is rendered from a manifest of every context and example written to baseDir so far
+    @Getter @Setter private boolean useManifest = false;
+
+    // when set, committed sessions are rendered and written by a single background thread, in commit order
+    private ThreadPoolExecutor writeBehind = null;
+    private final AtomicReference<Exception> writeBehindError = new AtomicReference<>();
+
+    // when set, bodies over inlineLimit are stored once per distinct content under bodies/<sha-256>, and the
+    // entries show the first inlineLimit bytes and link to the stored body
+    @Getter @Setter private boolean contentAddressed = false;
+    @Getter @Setter private int inlineLimit = DEFAULT_INLINE_LIMIT;
+    @Getter private final BodyStore bodyStore;
+
+    // context files are finished in parallel by close(), on this executor if set, otherwise on up to CLOSE_THREADS
+    // threads of its own that are shut down when it is done (the common pool is no place for blocking file writes)
+    @Getter @Setter private Executor closeExecutor = null;
+
+    // in incremental mode each run's pages are rendered to a staging directory, and close() only moves the ones whose
+    // content changed since the last run into baseDir; appendOnly and useManifest do not apply
+    @Getter @Setter private boolean incremental = false;
+    // in incremental mode, pages of contexts this run did not record are kept (and stay in the index) unless this is set
+    @Getter @Setter private boolean prune = false;
+    private volatile Set<String> volatileHeaders = caseInsensitive(DEFAULT_VOLATILE_HEADERS);
+    private File stagingDir = null;
+    private final Object stagingLock = new Object();
+    @Getter private int pagesPublished = 0;
+    @Getter private int pagesUnchanged = 0;
+
+    /** @return headers left out of the content hashes in incremental mode, because they change on every run */
+    public Set<String> getVolatileHeaders () { return volatileHeaders; }
+    public void setVolatileHeaders (Collection<String> headers) { volatileHeaders = caseInsensitive(headers); }
+
+    private static Set<String> caseInsensitive (Collection<String> headers) {
+        final Set<String> set = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        set.addAll(headers);
+        return Collections.unmodifiableSet(set);
+    }
 
     public TemplateCaptureTarget (String baseDir) {
         this(new File(baseDir), DEFAULT_INDEX_TEMPLATE, DEFAULT_INDEX_MORE_TEMPLATE, DEFAULT_HEADER_TEMPLATE, DEFAULT_FOOTER_TEMPLATE, DEFAULT_ENTRY_TEMPLATE);
@@ -70,21 +129,27 @@ public class TemplateCaptureTarget implements RestexCaptureTarget {
             throw new IllegalArgumentException("baseDir does not exist and could not be created: "+baseDir.getAbsolutePath());
         }
 
+        this.bodyStore = new BodyStore(new File(baseDir, BODIES_DIR));
+
+        this.indexTemplate = TemplateRegistry.get(indexTemplate);
+        this.indexMoreTemplate = TemplateRegistry.get(indexMoreTemplate);
+        this.headerTemplate = TemplateRegistry.get(headerTemplate);
+        this.footerTemplate = TemplateRegistry.get(footerTemplate);
+        this.entryTemplate = TemplateRegistry.get(entryTemplate);
+    }
+
+    public static Handlebars newHandlebars() {
         final Handlebars handlebars = new Handlebars(new ClassPathTemplateLoader("/"));
         handlebars.registerHelper("nl2br", new Helper<Object>() {
             public CharSequence apply(Object src, Options options) {
                 return src == null || src.toString().isEmpty() ? "" : new Handlebars.SafeString(src.toString().replace("\n", "<br/>"));
             }
         });
-
-        this.indexTemplate = compileOrDie(indexTemplate, handlebars);
-        this.indexMoreTemplate = compileOrDie(indexMoreTemplate, handlebars);
-        this.headerTemplate = compileOrDie(headerTemplate, handlebars);
-        this.footerTemplate = compileOrDie(footerTemplate, handlebars);
-        this.entryTemplate = compileOrDie(entryTemplate, handlebars);
+        handlebars.registerHelper(PrettyBodyHelper.NAME, PrettyBodyHelper.INSTANCE);
+        return handlebars;
     }
 
-    public Template compileOrDie(String template, Handlebars handlebars) {
+    public static Template compileOrDie(String template, Handlebars handlebars) {
         try {
             return handlebars.compile(template);
         } catch (IOException e) {
@@ -92,148 +157,559 @@ public class TemplateCaptureTarget implements RestexCaptureTarget {
         }
     }
 
-    public synchronized void startRecording (String context, String comment) {
-        if (recording) {
-            log.warn("startRecording: cannot start "+context+"/"+comment+", already recording "+this.context+"/"+this.comment);
+    /**
+     * Moves rendering and file I/O off the committing thread. Committed sessions are queued for a background
+     * writer; once queueSize sessions are waiting, commit blocks until there is room again. close() waits for
+     * the queue to drain, so the output is the same as when writing synchronously. The writer thread exits once
+     * it has been idle for WRITE_BEHIND_KEEP_ALIVE_MILLIS, and is started again by the next commit.
+     */
+    public synchronized void enableWriteBehind (int queueSize) {
+        if (writeBehind != null) return;
+        writeBehind = new ThreadPoolExecutor(1, 1, WRITE_BEHIND_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), r -> {
+            final Thread t = new Thread(r, getClass().getSimpleName()+"-writer-"+baseDir.getName());
+            t.setDaemon(true);
+            return t;
+        }, (r, executor) -> {
             try {
-                if (!captures.isEmpty()) commit();
-            } catch (IOException e) {
-                log.error("startRecording: error committing docs: "+e);
+                executor.getQueue().put(r);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("interrupted while waiting for room in the write-behind queue", e);
+            }
+        });
+        // an idle writer must not outlive close(), or hold on to this target after it
+        writeBehind.allowCoreThreadTimeOut(true);
+    }
+
+    public boolean isWriteBehind () { return writeBehind != null; }
+
+    @Override protected void write (RecordingSession session) throws IOException {
+        final ThreadPoolExecutor writer = writeBehind;
+        if (writer != null) {
+            writer.execute(() -> writeBehind(session));
+        } else {
+            try {
+                writeSession(session);
             } finally {
-                reset();
+                recycle(session);
             }
         }
-        this.context = context;
-        this.comment = comment;
-        currentCapture = new SimpleCaptureTarget();
-        recording = true;
     }
 
-    @Override public void requestUri(String method, String uri) {
-        if (currentCapture != null) currentCapture.requestUri(method, uri);
+    private void writeBehind (RecordingSession session) {
+        try {
+            writeSession(session);
+        } catch (Exception e) {
+            log.error("writeBehind: error writing docs for "+session+": "+e, e);
+            writeBehindError.compareAndSet(null, e);
+        } finally {
+            recycle(session);
+        }
     }
 
-    @Override public void requestHeader(String name, String value) { if (recording) currentCapture.requestHeader(name, value); }
-    @Override public void requestEntity(String entityData) { if (recording) currentCapture.requestEntity(entityData); }
-    @Override public void responseStatus(int statusCode, String reasonPhrase, String protocolVersion) {
-        if (recording) currentCapture.responseStatus(statusCode, reasonPhrase, protocolVersion);
-    }
-    @Override public void responseHeader(String name, String value) { if (recording) currentCapture.responseHeader(name, value); }
-    @Override public synchronized void responseEntity(String entityData) {
-        if (recording) {
-            currentCapture.responseEntity(entityData);
-            captures.add(currentCapture);
-            currentCapture = new SimpleCaptureTarget();
+    private void drainWriteBehind () throws IOException {
+        if (writeBehind == null) return;
+        try {
+            // the writer is a single thread, so once this no-op has run everything queued before it has too
+            writeBehind.submit(() -> {}).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while draining write-behind queue");
+        } catch (ExecutionException e) {
+            throw new IOException("Error draining write-behind queue: "+e, e);
         }
+        final Exception e = writeBehindError.getAndSet(null);
+        if (e != null) throw e instanceof IOException ? (IOException) e : new IOException("Error writing docs: "+e, e);
     }
 
-    public void addNote (String note) { if (recording) currentCapture.appendNote(note); }
-
-    @Override public void setBinaryRequest (String type) { if (recording) currentCapture.setBinaryRequest(type); }
-    @Override public void setBinaryResponse (String type) { if (recording) currentCapture.setBinaryResponse(type); }
-
-    public synchronized void commit () throws IOException {
+    private void writeSession (RecordingSession session) throws IOException {
 
+        final String context = session.getContext();
         final String fileBaseName = context.replaceAll("[^A-Za-z0-9]", "_");
         if (fileBaseName == null || fileBaseName.length() == 0) {
-            log.warn("No context name set (not committing). currentCapture="+currentCapture);
+            log.warn("No context name set (not committing). session="+session);
             return;
         }
         final String uriFileName = fileBaseName + HTML_SUFFIX;
 
-        ContextFile contextFile = contextFileMap.get(context);
-        if (contextFile == null) {
-            contextFile = new ContextFile(context, uriFileName);
-            contextFileMap.put(context, contextFile);
-        }
+        final ContextFile contextFile = contextFileMap.computeIfAbsent(context, c -> new ContextFile(c, uriFileName));
         contextFiles.add(contextFile);
+        for (SimpleCaptureTarget capture : session.getCaptures()) {
+            if (capture.getTiming() != null) contextFile.getLatencyHistogram().record(capture.getTiming().getTotalNanos());
+        }
 
-        String anchor = comment.replaceAll("[^A-Za-z0-9]", "_");
-        contextFile.add(new ContextExample(anchor, comment));
+        String anchor = session.getComment().replaceAll("[^A-Za-z0-9]", "_");
+        contextFile.add(new ContextExample(anchor, session.getComment(), incremental ? ContentHash.of(session, volatileHeaders) : null));
 
-        final File uriFile = new File(baseDir, uriFileName);
-        final boolean exists = uriFile.exists();
+        writeLargeBodies(session, fileBaseName + "_" + anchor);
+
+        // render outside of any lock, other sessions can keep going while we do this
+        final StringWriter entry = new StringWriter();
+        renderEntry(entryTemplate, entry, session, anchor);
+
+        final File uriFile = new File(outputDir(), uriFileName);
+        synchronized (contextFile) {
+            if (appendOnly && !incremental) {
+                ContextOutput output = outputs.get(uriFile);
+                if (output == null) {
+                    output = openOutput(uriFile, session);
+                    outputs.put(uriFile, output);
+                }
+                output.writer.write(entry.toString());
+                return;
+            }
 
-        synchronized (filesOpen) {
-            if (!exists) {
+            if (!uriFile.exists()) {
                 // first time writing to the file, so write the header
                 filesOpen.add(uriFile);
                 try (FileWriter writer = new FileWriter(uriFile)) {
-                    render(headerTemplate, writer);
+                    render(headerTemplate, writer, session);
                 }
             } else {
                 // file exists -- have we written to it yet?
-                if (!filesOpen.contains(uriFile)) {
+                if (filesOpen.add(uriFile)) {
                     // file exists but we have not written to it, so rewrite the file without the footer
                     removeFooter(uriFile);
                 }
             }
+
+            try (FileWriter writer = new FileWriter(uriFile, true)) {
+                // append the entry
+                writer.write(entry.toString());
+            }
         }
+    }
 
-        try (FileWriter writer = new FileWriter(uriFile, true)) {
-            // append the entry
-            renderEntry(entryTemplate, writer, anchor);
+    // bodies too large to show in full get written out raw, and the entry links to them
+    private void writeLargeBodies(RecordingSession session, String prefix) throws IOException {
+        final List<SimpleCaptureTarget> captures = session.getCaptures();
+        for (int i=0; i<captures.size(); i++) {
+            final SimpleCaptureTarget capture = captures.get(i);
+            if (contentAddressed) {
+                storeLargeBodies(capture);
+                continue;
+            }
+            if (capture.isRequestTruncated()) {
+                capture.setRequestBodyFile(writeBody(capture.getRequestBody(), prefix + "_" + i + "_request.body"));
+            }
+            if (capture.isResponseTruncated()) {
+                capture.setResponseBodyFile(writeBody(capture.getResponseBody(), prefix + "_" + i + "_response.body"));
+            }
         }
+    }
 
-        reset();
+    private void storeLargeBodies(SimpleCaptureTarget capture) throws IOException {
+        if (capture.getPreviewLimit() > inlineLimit) capture.setPreviewLimit(inlineLimit);
+        if (capture.isRequestTruncated()) {
+            capture.setRequestBodyHash(bodyStore.store(capture.getRequestBody()));
+            capture.setRequestBodyFile(BODIES_DIR + "/" + capture.getRequestBodyHash());
+        }
+        if (capture.isResponseTruncated()) {
+            capture.setResponseBodyHash(bodyStore.store(capture.getResponseBody()));
+            capture.setResponseBodyFile(BODIES_DIR + "/" + capture.getResponseBodyHash());
+        }
     }
 
-    public synchronized void reset() {
-        recording = false;
-        context = "";
-        comment = "";
-        captures.clear();
-        currentCapture = null;
+    private String writeBody(ByteBuffer body, String name) throws IOException {
+        final File bodiesDir = new File(baseDir, BODIES_DIR);
+        if (!bodiesDir.exists() && !bodiesDir.mkdirs() && !bodiesDir.exists()) {
+            throw new IOException("Error creating directory: "+bodiesDir.getAbsolutePath());
+        }
+        try (FileChannel channel = FileChannel.open(new File(bodiesDir, name).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer data = body.duplicate();
+            while (data.hasRemaining()) channel.write(data);
+        }
+        return BODIES_DIR + "/" + name;
     }
 
+    /**
+     * Finishes the docs: footers go on every context file and the index is written or extended. Each context file
+     * is finished on its own, in parallel on the close executor; the index fragments rendered alongside them are
+     * joined in context order, so the output is the same as when finishing one file at a time.
+     */
     public synchronized void close () throws IOException {
-        if (recording) commit();
-        for (File f : filesOpen) {
-            try (FileWriter writer = new FileWriter(f, true)) {
-                render(footerTemplate, writer);
-            }
+        commitOpenSessions();
+        drainWriteBehind();
+
+        final List<IOTask> tasks = new ArrayList<>();
+        for (File f : filesOpen) tasks.add(() -> writeFooter(f));
+
+        final Map<String, String> footerOffsets = new ConcurrentHashMap<>();
+        for (Map.Entry<File, ContextOutput> entry : outputs.entrySet()) {
+            tasks.add(() -> footerOffsets.put(entry.getKey().getName(), closeOutput(entry.getValue())));
         }
+
         final File indexFile = new File(baseDir, "index.html");
-        if (!indexFile.exists()) {
+        final boolean indexMore = !incremental && !useManifest && indexFile.exists();
+        final List<ContextFile> indexed = new ArrayList<>(contextFiles);
+        final String[] fragments = new String[indexed.size()];
+        if (indexMore && fragmentable(indexMoreTemplate)) {
+            for (int i=0; i<fragments.length; i++) {
+                final int n = i;
+                tasks.add(() -> fragments[n] = renderIndexFragment(indexMoreTemplate, indexed.get(n)));
+            }
+        }
+
+        runInParallel(tasks);
+
+        if (!outputs.isEmpty()) saveFooterOffsets(footerOffsets);
+        outputs.clear();
+        if (incremental) {
+            publishChanges();
+        } else if (useManifest) {
+            writeIndexFromManifest();
+        } else if (!indexMore) {
             try (FileWriter writer = new FileWriter(indexFile)) {
                 renderIndex(indexTemplate, writer);
             }
         } else {
-            StringWriter writer = new StringWriter();
-            renderIndex(indexMoreTemplate, writer);
-            replaceInFile(indexFile, INDEX_INSERTION_POINT, writer.toString());
+            String more = fragments.length == 0 || fragments[0] == null ? null
+                    : joinIndexFragments(renderIndexFragment(indexMoreTemplate, null), fragments);
+            if (more == null) {
+                final StringWriter writer = new StringWriter();
+                renderIndex(indexMoreTemplate, writer);
+                more = writer.toString();
+            }
+            replaceInFile(indexFile, INDEX_INSERTION_POINT, more);
         }
         filesOpen.clear();
         contextFiles.clear();
         contextFileMap.clear();
     }
 
-    protected synchronized void apply(final Template template, Writer writer, Map<String, Object> scope) {
-        synchronized (captures) {
-            try {
-                template.apply(scope, writer);
-            } catch (IOException e) {
-                throw new IllegalStateException("Error applying template '" + template.filename() + "': " + e, e);
+    private interface IOTask { void run () throws IOException; }
+
+    // waits for every task, then throws the first failure with the others suppressed
+    private void runInParallel (List<IOTask> tasks) throws IOException {
+        if (tasks.isEmpty()) return;
+        final ExecutorService pool = closeExecutor != null ? null : Executors.newFixedThreadPool(Math.min(tasks.size(), CLOSE_THREADS), r -> {
+            final Thread t = new Thread(r, getClass().getSimpleName()+"-close-"+baseDir.getName());
+            t.setDaemon(true);
+            return t;
+        });
+        final Executor executor = pool != null ? pool : closeExecutor;
+        Throwable error = null;
+        try {
+            final List<CompletableFuture<Void>> futures = new ArrayList<>(tasks.size());
+            for (IOTask task : tasks) {
+                futures.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        task.run();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, executor));
+            }
+            for (CompletableFuture<Void> future : futures) {
+                try {
+                    future.join();
+                } catch (CompletionException e) {
+                    final Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+                    if (error == null) { error = cause; } else { error.addSuppressed(cause); }
+                }
+            }
+        } finally {
+            if (pool != null) pool.shutdown();
+        }
+        if (error instanceof IOException) throw (IOException) error;
+        if (error instanceof RuntimeException) throw (RuntimeException) error;
+        if (error instanceof Error) throw (Error) error;
+        if (error != null) throw new IOException("Error finishing docs: "+error, error);
+    }
+
+    private void writeFooter(File f) throws IOException {
+        try (FileWriter writer = new FileWriter(f, true)) {
+            render(footerTemplate, writer, null);
+        }
+    }
+
+    // renders the index-more template for one context, or for none to get the text around the loop over files
+    private String renderIndexFragment(Template template, ContextFile contextFile) {
+        final StringWriter writer = new StringWriter();
+        final Map<String, Object> scope = new HashMap<>();
+        scope.put(SCOPE_FILES, contextFile == null ? Collections.emptyList() : Collections.singletonList(contextFile));
+        apply(template, writer, scope);
+        return writer.toString();
+    }
+
+    // an entry that knows its position among the files renders differently on its own
+    private static boolean fragmentable(Template template) {
+        final String text = template.text();
+        return !text.contains("@index") && !text.contains("@first") && !text.contains("@last");
+    }
+
+    /**
+     * The index-more template renders as before + (an entry per file) + after, and the frame (rendered for no files)
+     * is before + after. Each fragment is before + entry + after: cut out the entries and join them in context order,
+     * which gives the same text as rendering all the files at once. Returns null if the fragments do not fit the frame.
+     */
+    private static String joinIndexFragments(String frame, String[] fragments) {
+        int prefix = frame.length();
+        for (String fragment : fragments) {
+            int common = 0;
+            while (common < prefix && common < fragment.length() && frame.charAt(common) == fragment.charAt(common)) common++;
+            prefix = common;
+        }
+        final String suffix = frame.substring(prefix);
+        final StringBuilder joined = new StringBuilder(frame.substring(0, prefix));
+        for (String fragment : fragments) {
+            if (fragment.length() < frame.length() || !fragment.endsWith(suffix)) return null;
+            joined.append(fragment, prefix, fragment.length() - suffix.length());
+        }
+        return joined.append(suffix).toString();
+    }
+
+    // where this run's pages are written: baseDir, or in incremental mode a staging directory inside it
+    private File outputDir() throws IOException {
+        if (!incremental) return baseDir;
+        synchronized (stagingLock) {
+            if (stagingDir == null) stagingDir = Files.createTempDirectory(baseDir.toPath(), ".restex-staging-").toFile();
+            return stagingDir;
+        }
+    }
+
+    /**
+     * Moves the pages staged by this run into baseDir, each with an atomic rename, but only those whose content hash
+     * differs from the last run's; the others are left as they are on disk. A page's hash covers its examples'
+     * hashes, see ContentHash.of, and the templates and settings it is rendered with, so a changed template (a
+     * restex upgrade, say) republishes every page. Pages published by earlier runs for contexts this run did not record are kept, and
+     * stay in the index, so a partial run does not take them down; with prune set they are removed instead.
+     * The index is rendered from the docs manifest, and only published when its contexts and examples changed. It
+     * shows no latencies, since those change on every run.
+     */
+    private void publishChanges() throws IOException {
+        final File staging = outputDir();
+        if (contextFiles.isEmpty()) {
+            // nothing was recorded, which says nothing about the docs already published
+            Files.deleteIfExists(staging.toPath());
+            synchronized (stagingLock) { stagingDir = null; }
+            pagesPublished = 0;
+            pagesUnchanged = 0;
+            return;
+        }
+        final File hashesFile = new File(baseDir, CONTENT_HASHES_FILE);
+        final Properties previous = new Properties();
+        if (hashesFile.exists()) {
+            try (Reader reader = new FileReader(hashesFile)) {
+                previous.load(reader);
+            }
+        }
+        final DocsManifest manifest = DocsManifest.load(baseDir);
+        final Properties hashes = new Properties();
+        final Set<String> recorded = new HashSet<>();
+        final String pageRendering = renderingHash(headerTemplate, entryTemplate, footerTemplate);
+        int published = 0;
+        int unchanged = 0;
+        try {
+            for (ContextFile contextFile : contextFiles) {
+                recorded.add(contextFile.getFsPath());
+                // the page is rendered from this run's examples alone, so its manifest entry is replaced, not merged
+                final DocsManifest.Context context = new DocsManifest.Context(contextFile.getContext(), contextFile.getFsPath(), new ArrayList<>(), null);
+                manifest.getContexts().put(contextFile.getContext(), context);
+                final ContentHash pageHash = new ContentHash().add(pageRendering).add(contextFile.getContext());
+                synchronized (contextFile.getExamples()) {
+                    for (ContextExample example : contextFile.getExamples()) {
+                        context.addExample(example.getAnchor(), example.getDescription());
+                        pageHash.add(example.getAnchor()).add(example.getHash());
+                        hashes.setProperty(HASH_EXAMPLE + contextFile.getFsPath() + "#" + example.getAnchor(), example.getHash());
+                    }
+                }
+                final String key = HASH_PAGE + contextFile.getFsPath();
+                hashes.setProperty(key, pageHash.hex());
+                if (publish(new File(staging, contextFile.getFsPath()), hashes.getProperty(key), previous.getProperty(key))) {
+                    published++;
+                } else {
+                    unchanged++;
+                }
+            }
+            for (String key : previous.stringPropertyNames()) {
+                final String fsPath = key.startsWith(HASH_PAGE) ? key.substring(HASH_PAGE.length())
+                        : key.startsWith(HASH_EXAMPLE) ? key.substring(HASH_EXAMPLE.length(), key.lastIndexOf('#'))
+                        : null;
+                if (fsPath == null || recorded.contains(fsPath)) continue;
+                if (!prune) {
+                    hashes.setProperty(key, previous.getProperty(key));
+                    if (key.startsWith(HASH_PAGE)) unchanged++;
+                } else if (key.startsWith(HASH_PAGE)) {
+                    Files.deleteIfExists(new File(baseDir, fsPath).toPath());
+                    published++;
+                }
+            }
+            if (prune) manifest.getContexts().values().removeIf(c -> !recorded.contains(c.getFsPath()));
+
+            final ContentHash indexHash = new ContentHash().add(renderingHash(indexTemplate));
+            for (DocsManifest.Context context : manifest.getContexts().values()) {
+                context.setLatency(null);
+                indexHash.add(context.getContext()).add(context.getFsPath());
+                for (DocsManifest.Example example : context.getExamples()) indexHash.add(example.getAnchor()).add(example.getDescription());
+            }
+            hashes.setProperty(HASH_INDEX, indexHash.hex());
+            final File stagedIndex = new File(staging, "index.html");
+            if (!hashes.getProperty(HASH_INDEX).equals(previous.getProperty(HASH_INDEX)) || !new File(baseDir, "index.html").exists()) {
+                try (FileWriter writer = new FileWriter(stagedIndex)) {
+                    renderIndex(indexTemplate, writer, manifest.getContexts().values());
+                }
+                manifest.save(baseDir);
+            }
+            if (publish(stagedIndex, hashes.getProperty(HASH_INDEX), previous.getProperty(HASH_INDEX))) {
+                published++;
+            } else {
+                unchanged++;
+            }
+
+            // written last: if anything above fails, the next run compares against the old hashes and publishes again
+            if (!hashes.equals(previous)) {
+                final File temp = File.createTempFile(getClass().getSimpleName(), ".properties", staging);
+                try (Writer writer = new FileWriter(temp)) {
+                    hashes.store(writer, "content hash of each page and example, for incremental builds");
+                }
+                Files.move(temp.toPath(), hashesFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } finally {
+            final File[] leftover = staging.listFiles();
+            if (leftover != null) for (File f : leftover) Files.deleteIfExists(f.toPath());
+            Files.deleteIfExists(staging.toPath());
+            synchronized (stagingLock) { stagingDir = null; }
+        }
+        pagesPublished = published;
+        pagesUnchanged = unchanged;
+    }
+
+    // the template sources, and the settings that change what they render, that pages are rendered with
+    private String renderingHash(Template... templates) {
+        final ContentHash hash = new ContentHash();
+        for (Template template : templates) hash.add(template.filename()).add(template.text());
+        return hash.add(contentAddressed ? inlineLimit : -1).add(PrettyBodyHelper.DEFAULT_MAX_LINES).hex();
+    }
+
+    // moves a staged page over the published one, unless its hash is unchanged and the published page is still there
+    private boolean publish(File staged, String hash, String previousHash) throws IOException {
+        final File target = new File(baseDir, staged.getName());
+        if (hash.equals(previousHash) && target.exists()) return false;
+        Files.move(staged.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return true;
+    }
+
+    private void writeIndexFromManifest() throws IOException {
+        final DocsManifest manifest = DocsManifest.load(baseDir);
+        for (ContextFile contextFile : contextFiles) {
+            final DocsManifest.Context context = manifest.getOrCreate(contextFile.getContext(), contextFile.getFsPath());
+            // latencies are from the latest run that touched the context, older runs are not mixed in
+            final LatencyHistogram.Summary latency = contextFile.getLatency();
+            if (latency != null) context.setLatency(latency);
+            synchronized (contextFile.getExamples()) {
+                for (ContextExample example : contextFile.getExamples()) {
+                    context.addExample(example.getAnchor(), example.getDescription());
+                }
+            }
+        }
+        manifest.save(baseDir);
+
+        final File temp = File.createTempFile(getClass().getSimpleName(), HTML_SUFFIX, baseDir);
+        try (FileWriter writer = new FileWriter(temp)) {
+            renderIndex(indexTemplate, writer, manifest.getContexts().values());
+        }
+        Files.move(temp.toPath(), new File(baseDir, "index.html").toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private ContextOutput openOutput(File uriFile, RecordingSession session) throws IOException {
+        final boolean exists = uriFile.exists() && uriFile.length() > 0;
+        if (exists) {
+            final Long footerOffset = getFooterOffset(uriFile);
+            if (footerOffset == null) {
+                // no record of where the footer starts (or the file changed since), so fall back to scanning for it
+                removeFooter(uriFile);
+            } else {
+                try (FileChannel channel = FileChannel.open(uriFile.toPath(), StandardOpenOption.WRITE)) {
+                    channel.truncate(footerOffset);
+                }
+            }
+        }
+        final FileChannel channel = FileChannel.open(uriFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        final ContextOutput output = new ContextOutput(channel);
+        if (!exists) render(headerTemplate, output.writer, session);
+        return output;
+    }
+
+    // writes the footer and closes the file, returning where the footer starts and the file size after it
+    private String closeOutput(ContextOutput output) throws IOException {
+        try {
+            output.writer.flush();
+            final long footerOffset = output.channel.position();
+            render(footerTemplate, output.writer, null);
+            output.writer.flush();
+            return footerOffset + "," + output.channel.size();
+        } finally {
+            output.writer.close();
+        }
+    }
+
+    private void saveFooterOffsets(Map<String, String> closed) throws IOException {
+        final Properties offsets = getFooterOffsets();
+        for (String name : new TreeSet<>(closed.keySet())) offsets.setProperty(name, closed.get(name));
+        try (Writer writer = new FileWriter(new File(baseDir, FOOTER_OFFSETS_FILE))) {
+            offsets.store(writer, "where the footer of each context file starts, and the file size at the time");
+        }
+    }
+
+    // not synchronized on this: the write-behind thread calls it while close() holds the monitor
+    private Properties getFooterOffsets() throws IOException {
+        synchronized (footerOffsetsLock) {
+            if (footerOffsets == null) {
+                footerOffsets = new Properties();
+                final File offsetsFile = new File(baseDir, FOOTER_OFFSETS_FILE);
+                if (offsetsFile.exists()) {
+                    try (Reader reader = new FileReader(offsetsFile)) {
+                        footerOffsets.load(reader);
+                    }
+                }
             }
+            return footerOffsets;
         }
     }
 
-    protected void renderEntry(Template template, Writer writer, String anchor) {
+    private Long getFooterOffset(File uriFile) throws IOException {
+        final String recorded = getFooterOffsets().getProperty(uriFile.getName());
+        if (recorded == null) return null;
+        final String[] parts = recorded.split(",");
+        try {
+            final long offset = Long.parseLong(parts[0]);
+            final long size = Long.parseLong(parts[1]);
+            return size == uriFile.length() && offset <= size ? offset : null;
+        } catch (Exception e) {
+            log.warn("getFooterOffset: invalid offset for "+uriFile.getName()+": "+recorded);
+            return null;
+        }
+    }
+
+    protected void apply(final Template template, Writer writer, Map<String, Object> scope) {
+        try {
+            TemplateRegistry.apply(template, scope, writer);
+        } catch (IOException e) {
+            throw new IllegalStateException("Error applying template '" + template.filename() + "': " + e, e);
+        }
+    }
+
+    protected void renderEntry(Template template, Writer writer, RecordingSession session, String anchor) {
         Map<String, Object> scope = new HashMap<>();
-        scope.put(SCOPE_HTTP, this);
+        scope.put(SCOPE_HTTP, session);
         scope.put(SCOPE_ANCHOR, anchor);
         apply(template, writer, scope);
     }
 
-    protected void render(Template template, Writer writer) {
+    protected void render(Template template, Writer writer, RecordingSession session) {
         Map<String, Object> scope = new HashMap<>();
-        scope.put(SCOPE_HTTP, this);
+        scope.put(SCOPE_HTTP, session);
         apply(template, writer, scope);
     }
 
-    protected void renderIndex(Template template, Writer writer) {
+    protected void renderIndex(Template template, Writer writer) { renderIndex(template, writer, contextFiles); }
+
+    protected void renderIndex(Template template, Writer writer, Collection<?> files) {
         Map<String, Object> scope = new HashMap<>();
-        scope.put(SCOPE_FILES, contextFiles);
+        scope.put(SCOPE_FILES, files);
         apply(template, writer, scope);
     }
 
@@ -271,15 +747,31 @@ public class TemplateCaptureTarget implements RestexCaptureTarget {
         }
     }
 
+    private static class ContextOutput {
+        final FileChannel channel;
+        final Writer writer;
+
+        ContextOutput(FileChannel channel) {
+            this.channel = channel;
+            // same charset and replacement behavior as the FileWriter used in the other modes
+            this.writer = new BufferedWriter(Channels.newWriter(channel, Charset.defaultCharset().newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE), -1));
+        }
+    }
+
     @AllArgsConstructor @EqualsAndHashCode(of="context")
     class ContextFile implements Comparable {
 
         @Getter @Setter public String context;
         @Getter @Setter public String fsPath;
 
-        @Getter public final List<ContextExample> examples = new ArrayList<>();
+        @Getter public final List<ContextExample> examples = Collections.synchronizedList(new ArrayList<>());
         public void add(ContextExample contextExample) { examples.add(contextExample); }
 
+        @Getter private final LatencyHistogram latencyHistogram = new LatencyHistogram();
+        public LatencyHistogram.Summary getLatency() { return latencyHistogram.summarize(); }
+
         @Override
         public int compareTo(Object o) {
             return (o instanceof ContextFile) ? context.compareTo(((ContextFile) o).getContext()) : 0;
@@ -290,5 +782,7 @@ public class TemplateCaptureTarget implements RestexCaptureTarget {
     class ContextExample {
         @Getter @Setter public String anchor;
         @Getter @Setter public String description;
+        // in incremental mode, the content hash of the session this example was rendered from
+        @Getter @Setter public String hash;
     }
 }
@@ -0,0 +1,49 @@
+package org.cobbzilla.restex.targets;
+
+import com.github.jknack.handlebars.Context;
+import com.github.jknack.handlebars.Handlebars;
+import com.github.jknack.handlebars.Template;
+import com.github.jknack.handlebars.context.JavaBeanValueResolver;
+import com.github.jknack.handlebars.context.MapValueResolver;
+import com.github.jknack.handlebars.context.MethodValueResolver;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compiles each classpath template once per JVM and shares it between every TemplateCaptureTarget (and the ring
+ * buffer's HTML dump), so a suite that makes a new target per test class does not parse the templates each time.
+ * Compiled templates are immutable and can be applied from any thread.
+ */
+public class TemplateRegistry {
+
+    private static final Handlebars handlebars = TemplateCaptureTarget.newHandlebars();
+    private static final Map<String, Template> templates = new ConcurrentHashMap<>();
+
+    /** @return the compiled template with this name, compiling it if this is the first time it is asked for */
+    public static Template get (String name) {
+        return templates.computeIfAbsent(name, n -> {
+            synchronized (handlebars) { return TemplateCaptureTarget.compileOrDie(n, handlebars); }
+        });
+    }
+
+    /** Forgets every compiled template, so the next get() picks up changes to the template files */
+    public static void clear () { templates.clear(); }
+
+    /**
+     * Applies a template with the capture properties resolved by CaptureValueResolver. It has to come first:
+     * push() would add it after the default resolvers, and the JavaBean resolver would answer everything.
+     */
+    public static void apply (Template template, Object model, Writer writer) throws IOException {
+        final Context context = Context.newBuilder(model)
+                .resolver(CaptureValueResolver.INSTANCE, MapValueResolver.INSTANCE, JavaBeanValueResolver.INSTANCE, MethodValueResolver.INSTANCE)
+                .build();
+        try {
+            template.apply(context, writer);
+        } finally {
+            context.destroy();
+        }
+    }
+}
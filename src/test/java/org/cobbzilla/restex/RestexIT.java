@@ -1,13 +1,57 @@
 package org.cobbzilla.restex;
 
+import com.github.jknack.handlebars.Template;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.HttpClients;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.util.EntityUtils;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.H2AsyncClientBuilder;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClientBuilder;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.Message;
+import org.apache.hc.core5.http.URIScheme;
+import org.apache.hc.core5.http.impl.bootstrap.HttpAsyncServer;
+import org.apache.hc.core5.http.nio.AsyncRequestConsumer;
+import org.apache.hc.core5.http.nio.AsyncServerRequestHandler;
+import org.apache.hc.core5.http.nio.entity.StringAsyncEntityConsumer;
+import org.apache.hc.core5.http.nio.support.AsyncResponseBuilder;
+import org.apache.hc.core5.http.nio.support.BasicRequestConsumer;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.impl.nio.bootstrap.H2ServerBootstrap;
+import org.cobbzilla.restex.hc5.RestexAsyncExecChainHandler;
+import org.cobbzilla.restex.hc5.RestexExecChainHandler;
+import org.cobbzilla.restex.replay.LoadReplay;
+import org.cobbzilla.restex.replay.ReplayIndex;
+import org.cobbzilla.restex.replay.ReplayServer;
+import org.cobbzilla.restex.targets.BodyStore;
+import org.cobbzilla.restex.targets.CaptureLogReader;
+import org.cobbzilla.restex.targets.CaptureLogRenderer;
+import org.cobbzilla.restex.targets.CaptureValueResolver;
+import org.cobbzilla.restex.targets.CompositeCaptureTarget;
+import org.cobbzilla.restex.targets.DocsManifest;
+import org.cobbzilla.restex.targets.LogCaptureTarget;
+import org.cobbzilla.restex.targets.PrettyBodyHelper;
+import org.cobbzilla.restex.targets.RecordingSession;
+import org.cobbzilla.restex.targets.RingBufferCaptureTarget;
+import org.cobbzilla.restex.targets.SessionCaptureTarget;
 import org.cobbzilla.restex.targets.SimpleCaptureTarget;
 import org.cobbzilla.restex.targets.TemplateCaptureTarget;
+import org.cobbzilla.restex.targets.TemplateRegistry;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.AbstractHandler;
@@ -18,16 +62,41 @@ import org.junit.Test;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 @Slf4j
@@ -42,10 +111,34 @@ public class RestexIT {
         public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
             // do nothing
             log.info("handle called.");
+            // read the whole request first: answering early can close the connection while a large body is still being sent
+            request.getInputStream().readAllBytes();
             response.setStatus(200);
+            if (target.startsWith("/large/")) {
+                final int size = Integer.parseInt(target.substring("/large/".length()));
+                response.setContentType("text/plain");
+                response.setContentLength(size);
+                final byte[] chunk = new byte[8192];
+                Arrays.fill(chunk, (byte) 'x');
+                for (int written=0; written<size; written+=chunk.length) {
+                    response.getOutputStream().write(chunk, 0, Math.min(chunk.length, size - written));
+                }
+                baseRequest.setHandled(true);
+                return;
+            }
+            if (target.startsWith("/gzip/")) {
+                final byte[] gzipped = gzip(jsonObjects(Integer.parseInt(target.substring("/gzip/".length()))));
+                response.setContentType("application/json");
+                response.setHeader("Content-Encoding", "gzip");
+                response.setContentLength(gzipped.length);
+                response.getOutputStream().write(gzipped);
+                baseRequest.setHandled(true);
+                return;
+            }
             final Enumeration<String> headerNames = request.getHeaderNames();
             while (headerNames.hasMoreElements()) {
                 String headerName = headerNames.nextElement();
+                if (headerName.equalsIgnoreCase("Content-Length") || headerName.equalsIgnoreCase("Content-Type")) continue;
                 response.addHeader(headerName, request.getHeader(headerName));
             }
             response.getWriter().write("foo");
@@ -78,6 +171,94 @@ public class RestexIT {
         assertEquals("wrong request header value for "+requestHeaderName1, requestHeaderValue1, responseHeaderMap.get(requestHeaderName1));
     }
 
+    @Test
+    public void testStreamingCapture () throws Exception {
+        SimpleCaptureTarget target = new SimpleCaptureTarget();
+        RestexClientConnectionManager manager = new RestexClientConnectionManager(target);
+        manager.setStreaming(true);
+        HttpClient httpClient = manager.getHttpClient();
+        HttpGet httpGet = new HttpGet("http://127.0.0.1:"+TEST_PORT+"/test");
+
+        final HttpResponse response = httpClient.execute(httpGet);
+        assertEquals("wrong response body", "foo", EntityUtils.toString(response.getEntity()));
+        assertEquals("wrong captured response body", "foo", target.getResponseEntity());
+    }
+
+    @Test
+    public void testByteExactCapture () throws Exception {
+        SimpleCaptureTarget target = new SimpleCaptureTarget();
+        HttpClient httpClient = new RestexClientConnectionManager(target).getHttpClient();
+
+        final String json = "{\"name\":\"h\u00e9llo \u65e5\u672c\"}";
+        HttpPost httpPost = new HttpPost("http://127.0.0.1:"+TEST_PORT+"/test");
+        httpPost.setEntity(new StringEntity(json, ContentType.APPLICATION_JSON));
+        EntityUtils.consume(httpClient.execute(httpPost).getEntity());
+        assertEquals("wrong captured request body", json, target.getRequestEntity());
+        assertNull("text request flagged as binary", target.getBinaryRequest());
+
+        final byte[] png = {(byte) 0x89, 'P', 'N', 'G', 0, (byte) 0xff};
+        httpPost = new HttpPost("http://127.0.0.1:"+TEST_PORT+"/test");
+        httpPost.setEntity(new ByteArrayEntity(png, ContentType.create("image/png")));
+        EntityUtils.consume(httpClient.execute(httpPost).getEntity());
+        assertEquals("binary request not flagged", "image/png, 6 bytes", target.getBinaryRequest());
+        assertEquals("wrong captured request bytes", ByteBuffer.wrap(png), target.getRequestBody());
+
+        // the same target, text after binary: the binary hint must not stick
+        httpPost = new HttpPost("http://127.0.0.1:"+TEST_PORT+"/test");
+        httpPost.setEntity(new StringEntity(json, ContentType.APPLICATION_JSON));
+        EntityUtils.consume(httpClient.execute(httpPost).getEntity());
+        assertNull("binary hint of the last exchange kept", target.getBinaryRequest());
+        assertEquals("wrong captured request body", json, target.getRequestEntity());
+    }
+
+    @Test
+    public void testReusedTargetHeaders () throws Exception {
+        final SimpleCaptureTarget target = new SimpleCaptureTarget();
+        final HttpClient httpClient = new RestexClientConnectionManager(target).getHttpClient();
+
+        HttpGet httpGet = new HttpGet("http://127.0.0.1:"+TEST_PORT+"/gzip/3");
+        httpGet.addHeader("X-N", "/one");
+        EntityUtils.consume(httpClient.execute(httpGet).getEntity());
+        assertEquals("gzip", target.getResponseContentEncoding());
+
+        httpGet = new HttpGet("http://127.0.0.1:"+TEST_PORT+"/test");
+        httpGet.addHeader("X-N", "/two");
+        EntityUtils.consume(httpClient.execute(httpGet).getEntity());
+        assertEquals(Collections.singletonList("/two"), target.getRequestHeaderFields().getAll("X-N"));
+        assertEquals(Collections.singletonList("/two"), target.getResponseHeaderFields().getAll("X-N"));
+        assertNull("last exchange's Content-Encoding carried over", target.getResponseContentEncoding());
+        assertEquals("foo", target.getResponseEntity());
+    }
+
+    @Test
+    public void testPooledCapture () throws Exception {
+        final AtomicInteger responses = new AtomicInteger(0);
+        final RestexCaptureTarget target = new SimpleCaptureTarget() {
+            @Override public void responseEntity(ByteBuffer entityData, ContentType contentType) { responses.incrementAndGet(); }
+        };
+        try (RestexPoolingClientConnectionManager manager = new RestexPoolingClientConnectionManager(target)) {
+            final HttpClient httpClient = manager.getHttpClient();
+            assertSame("client was not reused", httpClient, manager.getHttpClient());
+
+            final int threads = 8;
+            final int requestsPerThread = 5;
+            final ExecutorService pool = Executors.newFixedThreadPool(threads);
+            final List<Future<?>> results = new ArrayList<>();
+            for (int i=0; i<threads; i++) {
+                results.add(pool.submit(() -> {
+                    for (int j=0; j<requestsPerThread; j++) {
+                        final HttpResponse response = httpClient.execute(new HttpGet("http://127.0.0.1:"+TEST_PORT+"/test"));
+                        assertEquals("wrong response body", "foo", EntityUtils.toString(response.getEntity()));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) result.get();
+            pool.shutdown();
+            assertEquals("wrong number of captured responses", threads * requestsPerThread, responses.get());
+        }
+    }
+
     @Test
     public void testTemplateCapture () throws Exception {
 
@@ -119,6 +300,939 @@ public class RestexIT {
         target.close();
     }
 
+    @Test
+    public void testParallelRecordingSessions () throws Exception {
+
+        File tempDir = createTempDir(new File(System.getProperty("java.io.tmpdir")), getClass().getSimpleName());
+        final TemplateCaptureTarget target = new TemplateCaptureTarget(tempDir);
+        final int threads = 4;
+        final int requestsPerThread = 3;
+
+        try (RestexPoolingClientConnectionManager manager = new RestexPoolingClientConnectionManager(target)) {
+            final HttpClient httpClient = manager.getHttpClient();
+            final ExecutorService pool = Executors.newFixedThreadPool(threads);
+            final List<Future<?>> results = new ArrayList<>();
+            for (int i=0; i<threads; i++) {
+                final int thread = i;
+                results.add(pool.submit(() -> {
+                    target.startRecording("parallel context "+thread, "parallel test "+thread);
+                    for (int j=0; j<requestsPerThread; j++) {
+                        target.addNote("request "+j);
+                        final HttpResponse response = httpClient.execute(new HttpGet("http://127.0.0.1:"+TEST_PORT+"/test-"+thread+"-"+j));
+                        EntityUtils.consume(response.getEntity());
+                    }
+                    target.commit();
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) result.get();
+            pool.shutdown();
+        }
+        target.close();
+
+        for (int i=0; i<threads; i++) {
+            final String html = FileUtils.readFileToString(new File(tempDir, "parallel_context_"+i+".html"));
+            for (int j=0; j<requestsPerThread; j++) {
+                assertTrue("missing request "+j+" in context "+i, html.contains("/test-"+i+"-"+j));
+            }
+            for (int k=0; k<threads; k++) {
+                if (k != i) assertFalse("context "+i+" captured a request from context "+k, html.contains("/test-"+k+"-"));
+            }
+        }
+    }
+
+    @Test
+    public void testPooledSettingsChange () throws Exception {
+        final SimpleCaptureTarget target = new SimpleCaptureTarget();
+        try (RestexPoolingClientConnectionManager manager = new RestexPoolingClientConnectionManager(target)) {
+            final HttpClient httpClient = manager.getHttpClient();
+            EntityUtils.toString(httpClient.execute(new HttpGet("http://127.0.0.1:"+TEST_PORT+"/large/1000")).getEntity());
+            assertEquals(1000, target.getResponseBodySize());
+
+            // the connection is already pooled, and still picks up the new settings
+            manager.setStreaming(true);
+            manager.setCaptureLimit(100);
+            EntityUtils.toString(httpClient.execute(new HttpGet("http://127.0.0.1:"+TEST_PORT+"/large/1000")).getEntity());
+            assertEquals(1, manager.getTotalStats().getAvailable());
+            assertEquals(100, target.getResponseBodySize());
+        }
+    }
+
+    @Test
+    public void testLargeBodySpillsToDisk () throws Exception {
+        final int size = 4 * 1024 * 1024;
+        final File tempDir = createTempDir(new File(System.getProperty("java.io.tmpdir")), getClass().getSimpleName());
+        final TemplateCaptureTarget target = new TemplateCaptureTarget(tempDir);
+        final HttpClient httpClient = new RestexClientConnectionManager(target).getHttpClient();
+
+        final RecordingSession session = target.startRecording("large bodies", "a large download");
+        final HttpResponse response = httpClient.execute(new HttpGet("http://127.0.0.1:"+TEST_PORT+"/large/"+size));
+        assertEquals("wrong response size", size, EntityUtils.toByteArray(response.getEntity()).length);
+        // read once, like the entity off the wire, and it still knows its length after its copy is released
+        assertFalse("buffered entity claims to be repeatable", response.getEntity().isRepeatable());
+        assertEquals(size, response.getEntity().getContentLength());
+
+        final SimpleCaptureTarget capture = session.getCaptures().get(0);
+        assertTrue("large body was kept on the heap", capture.getResponseBody().isDirect());
+        assertTrue("large body was not truncated for display", capture.getResponseEntity().length() < size);
+        target.commit();
+        target.close();
+
+        assertEquals("wrong size of raw body file", size, new File(tempDir, capture.getResponseBodyFile()).length());
+    }
+
+    @Test
+    public void testSpilledRequestCopyDeleted () throws Exception {
+        final File tmp = new File(System.getProperty("java.io.tmpdir"));
+        final FilenameFilter spilled = (dir, name) -> name.startsWith("restex-capture-");
+        final int before = tmp.list(spilled).length;
+
+        final SimpleCaptureTarget target = new SimpleCaptureTarget();
+        final HttpPost post = new HttpPost("http://127.0.0.1:"+TEST_PORT+"/spill");
+        final byte[] body = new byte[CaptureBuffer.DEFAULT_SPILL_THRESHOLD * 2];
+        Arrays.fill(body, (byte) 'y');
+        // not repeatable, so the request is copied before it is sent
+        post.setEntity(new InputStreamEntity(new ByteArrayInputStream(body), body.length, ContentType.TEXT_PLAIN));
+        EntityUtils.consume(new RestexClientConnectionManager(target).getHttpClient().execute(post).getEntity());
+
+        assertEquals(body.length, target.getRequestBodySize());
+        assertEquals("spilled request copy left behind", before, tmp.list(spilled).length);
+    }
+
+    @Test
+    public void testCapturePolicy () throws Exception {
+        final SimpleCaptureTarget target = new SimpleCaptureTarget();
+        final RestexClientConnectionManager manager = new RestexClientConnectionManager(target);
+        manager.setCapturePolicy(new BasicCapturePolicy().methods("GET").excludeUri(".*/skip$").maxBodySize(1000));
+        final HttpClient httpClient = manager.getHttpClient();
+
+        EntityUtils.consume(httpClient.execute(new HttpGet("http://127.0.0.1:"+TEST_PORT+"/test")).getEntity());
+        assertEquals("selected exchange not captured", "/test", target.getRequestUri());
+
+        EntityUtils.consume(httpClient.execute(new HttpGet("http://127.0.0.1:"+TEST_PORT+"/skip")).getEntity());
+        EntityUtils.consume(httpClient.execute(new HttpPost("http://127.0.0.1:"+TEST_PORT+"/test")).getEntity());
+        assertEquals("excluded exchange was captured", "/test", target.getRequestUri());
+        assertEquals("excluded exchange was captured", "GET", target.getRequestMethod());
+
+        final HttpResponse response = httpClient.execute(new HttpGet("http://127.0.0.1:"+TEST_PORT+"/large/100000"));
+        assertEquals("wrong response size", 100000, EntityUtils.toByteArray(response.getEntity()).length);
+        assertEquals("oversized body not skipped", "text/plain, 100000 bytes (not captured)", target.getBinaryResponse());
+        assertNull("oversized body was captured", target.getResponseBody());
+    }
+
+    @Test
+    public void testRingBufferCapture () throws Exception {
+        final RingBufferCaptureTarget target = new RingBufferCaptureTarget(4, 1024, 16);
+        try (RestexPoolingClientConnectionManager manager = new RestexPoolingClientConnectionManager(target)) {
+            final HttpClient httpClient = manager.getHttpClient();
+            for (int i=0; i<6; i++) {
+                EntityUtils.consume(httpClient.execute(new HttpGet("http://127.0.0.1:"+TEST_PORT+"/ring/"+i)).getEntity());
+            }
+        }
+        final List<SimpleCaptureTarget> snapshot = target.snapshot();
+        assertEquals("wrong number of exchanges kept", 4, snapshot.size());
+        for (int i=0; i<4; i++) {
+            assertEquals("wrong exchange in slot "+i, "/ring/"+(i+2), snapshot.get(i).getRequestUri());
+            assertEquals("wrong response body", "foo", snapshot.get(i).getResponseEntity());
+        }
+
+        final StringWriter json = new StringWriter();
+        target.dumpJson(json);
+        assertTrue("JSON dump missing exchange", json.toString().contains("\"/ring/5\""));
+        final StringWriter html = new StringWriter();
+        target.dumpHtml(html);
+        assertTrue("HTML dump missing exchange", html.toString().contains("/ring/5"));
+    }
+
+    @Test
+    public void testRingBufferStaleTakeover () throws Exception {
+        final RingBufferCaptureTarget ring = new RingBufferCaptureTarget(2, 1024, 16);
+        ring.setStaleSlotNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        final RestexCaptureTarget stalled = ring.forExchange();
+        stalled.requestUri("GET", "/stalled");
+        ring.forExchange().requestUri("GET", "/other");
+        Thread.sleep(10);
+
+        // the stalled exchange's slot is taken over, and what it writes afterwards goes nowhere
+        final RestexCaptureTarget fresh = ring.forExchange();
+        fresh.requestUri("GET", "/fresh");
+        stalled.requestUri("GET", "/stalled-late");
+        stalled.responseStatus(500, "late", "HTTP/1.1");
+        stalled.responseEntity("late");
+        assertTrue("half-written exchange published by its stale owner", ring.snapshot().isEmpty());
+
+        fresh.responseStatus(200, "OK", "HTTP/1.1");
+        fresh.responseEntity("fresh");
+        stalled.responseEntity("later still");
+        final List<SimpleCaptureTarget> snapshot = ring.snapshot();
+        assertEquals(1, snapshot.size());
+        assertEquals("/fresh", snapshot.get(0).getRequestUri());
+        assertEquals(200, snapshot.get(0).getStatusCode());
+        assertEquals("fresh", snapshot.get(0).getResponseEntity());
+    }
+
+    @Test
+    public void testCompositeCaptureTarget () throws Exception {
+        final File tempDir = createTempDir(new File(System.getProperty("java.io.tmpdir")), getClass().getSimpleName());
+        final TemplateCaptureTarget docs = new TemplateCaptureTarget(tempDir);
+        final RingBufferCaptureTarget ring = new RingBufferCaptureTarget(8, 1024, 16);
+        final CountDownLatch release = new CountDownLatch(1);
+        final SimpleCaptureTarget stuck = new SimpleCaptureTarget() {
+            @Override public void requestUri(String method, String uri) {
+                try { release.await(); } catch (InterruptedException e) { throw new IllegalStateException(e); }
+                super.requestUri(method, uri);
+            }
+        };
+        final CompositeCaptureTarget composite = new CompositeCaptureTarget().add(ring).addQueued(docs, 16).addQueued(stuck, 1);
+
+        try (RestexPoolingClientConnectionManager manager = new RestexPoolingClientConnectionManager(composite)) {
+            final HttpClient httpClient = manager.getHttpClient();
+            final CompositeCaptureTarget.Sink stuckSink = composite.getSinks().get(2);
+            docs.startRecording("composite", "one exchange, three targets");
+            for (int i=0; i<4; i++) {
+                EntityUtils.consume(httpClient.execute(new HttpGet("http://127.0.0.1:"+TEST_PORT+"/composite/"+i)).getEntity());
+                while (i == 0 && stuckSink.getQueueDepth() > 0) Thread.sleep(1);
+            }
+            // the stuck target holds its first exchange and queues one more, the rest are dropped without blocking
+            assertEquals("wrong number of inline exchanges", 4, ring.snapshot().size());
+            assertEquals("wrong queue depth", 1, stuckSink.getQueueDepth());
+            assertEquals("wrong number dropped", 2, stuckSink.getDropped());
+            assertEquals("wrong total dropped", 2, composite.getDropped());
+            release.countDown();
+            composite.commit(); // waits for room in the stuck target's queue
+        }
+        composite.flush();
+        assertEquals("wrong number delivered to the stuck target", 2, composite.getSinks().get(2).getDelivered());
+        assertEquals("wrong number delivered to docs", 4, composite.getSinks().get(1).getDelivered());
+        composite.close();
+        composite.flush(); // nothing left to wait for
+        final String html = FileUtils.readFileToString(new File(tempDir, "composite.html"), "UTF-8");
+        for (int i=0; i<4; i++) assertTrue("docs missing exchange "+i, html.contains("/composite/"+i));
+    }
+
+    @Test
+    public void testCompositeCommitsLaggingSessionsOnce () throws Exception {
+        final List<String> written = Collections.synchronizedList(new ArrayList<>());
+        final SessionCaptureTarget slow = new SessionCaptureTarget() {
+            @Override protected void write(RecordingSession session) throws IOException {
+                try { Thread.sleep(20); } catch (InterruptedException e) { throw new InterruptedIOException(); }
+                written.add(session.getComment() + ":" + session.getCaptures().size());
+            }
+            @Override public void close() {}
+        };
+        final CompositeCaptureTarget composite = new CompositeCaptureTarget().addQueued(slow, 16);
+        for (int i=0; i<5; i++) {
+            slow.startRecording("lagging", "s"+i);
+            composite.requestUri("GET", "/lagging/"+i);
+            composite.responseStatus(200, "OK", "HTTP/1.1");
+            composite.responseEntity(ByteBuffer.wrap(("s"+i).getBytes()), ContentType.TEXT_PLAIN);
+            composite.commit();
+        }
+        composite.close();
+        assertEquals(Arrays.asList("s0:1", "s1:1", "s2:1", "s3:1", "s4:1"), written);
+    }
+
+    @Test
+    public void testWriteBehindMatchesSynchronous () throws Exception {
+        final File syncDir = createTempDir(new File(System.getProperty("java.io.tmpdir")), getClass().getSimpleName());
+        final File asyncDir = createTempDir(new File(System.getProperty("java.io.tmpdir")), getClass().getSimpleName());
+
+        final TemplateCaptureTarget sync = new TemplateCaptureTarget(syncDir);
+        recordSyntheticExchanges(sync);
+        sync.close();
+
+        final TemplateCaptureTarget async = new TemplateCaptureTarget(asyncDir);
+        async.enableWriteBehind(2);
+        recordSyntheticExchanges(async);
+        async.close();
+
+        assertSameFiles(syncDir, asyncDir);
+
+        // the idle writer thread goes away once the target is closed
+        final String writerName = "TemplateCaptureTarget-writer-" + asyncDir.getName();
+        final long deadline = System.currentTimeMillis() + 10 * TemplateCaptureTarget.WRITE_BEHIND_KEEP_ALIVE_MILLIS;
+        while (Thread.getAllStackTraces().keySet().stream().anyMatch(t -> t.getName().equals(writerName))) {
+            assertTrue("write-behind thread still running after close", System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    public void testAppendOnlyAcrossRuns () throws Exception {
+        final File legacyDir = createTempDir(new File(System.getProperty("java.io.tmpdir")), getClass().getSimpleName());
+        final File appendDir = createTempDir(new File(System.getProperty("java.io.tmpdir")), getClass().getSimpleName());
+
+        for (int run=0; run<2; run++) {
+            final TemplateCaptureTarget legacy = new TemplateCaptureTarget(legacyDir);
+            recordSyntheticExchanges(legacy);
+            legacy.close();
+
+            final TemplateCaptureTarget append = new TemplateCaptureTarget(appendDir);
+            append.setAppendOnly(true);
+            recordSyntheticExchanges(append);
+            append.close();
+        }
+
+        new File(appendDir, TemplateCaptureTarget.FOOTER_OFFSETS_FILE).delete();
+        assertSameFiles(legacyDir, appendDir);
+    }
+
+    @Test
+    public void testManifestIndexHasNoDuplicates () throws Exception {
+        final File tempDir = createTempDir(new File(System.getProperty("java.io.tmpdir")), getClass().getSimpleName());
+        for (int run=0; run<2; run++) {
+            final TemplateCaptureTarget target = new TemplateCaptureTarget(tempDir);
+            target.setUseManifest(true);
+            recordSyntheticExchanges(target);
+            target.close();
+        }
+        assertTrue("no manifest written", new File(tempDir, DocsManifest.MANIFEST_FILE).exists());
+
+        final String index = FileUtils.readFileToString(new File(tempDir, "index.html"));
+        for (int i=0; i<5; i++) {
+            final String link = "context_"+(i % 2)+".html#test_"+i+"\"";
+            assertEquals("wrong number of index entries for test "+i, 1, index.split(Pattern.quote(link), -1).length - 1);
+        }
+    }
+
+    @Test
+    public void testSkippedBodyTiming () throws Exception {
+        final SimpleCaptureTarget target = new SimpleCaptureTarget();
+        final RestexClientConnectionManager manager = new RestexClientConnectionManager(target);
+        manager.setCapturePolicy(new BasicCapturePolicy().contentTypes("application/json"));
+        final HttpClient httpClient = manager.getHttpClient();
+
+        // neither body length is known up front: the request is streamed, and the response comes back chunked
+        final HttpPost httpPost = new HttpPost("http://127.0.0.1:"+TEST_PORT+"/test");
+        httpPost.setEntity(new InputStreamEntity(new ByteArrayInputStream("hello".getBytes()), -1, ContentType.TEXT_PLAIN));
+        final HttpResponse response = httpClient.execute(httpPost);
+        assertNull("response received before its body was read", target.getTiming());
+        assertEquals("foo", EntityUtils.toString(response.getEntity()));
+
+        final ExchangeTiming timing = target.getTiming();
+        assertEquals("wrong request bytes", 5, timing.getRequestBytes());
+        assertEquals("wrong response bytes", 3, timing.getResponseBytes());
+        assertTrue("request body captured", target.getBinaryRequest().endsWith("(not captured)"));
+        assertTrue("response body captured", target.getBinaryResponse().endsWith("(not captured)"));
+        assertNull(target.getResponseBody());
+    }
+
+    @Test
+    public void testExchangeTiming () throws Exception {
+        final File tempDir = createTempDir(new File(System.getProperty("java.io.tmpdir")), getClass().getSimpleName());
+        final TemplateCaptureTarget target = new TemplateCaptureTarget(tempDir);
+        final HttpClient httpClient = new RestexClientConnectionManager(target).getHttpClient();
+
+        final RecordingSession session = target.startRecording("timed", "a timed request");
+        final HttpPost httpPost = new HttpPost("http://127.0.0.1:"+TEST_PORT+"/test");
+        httpPost.setEntity(new StringEntity("hello", ContentType.TEXT_PLAIN));
+        EntityUtils.consume(httpClient.execute(httpPost).getEntity());
+
+        final ExchangeTiming timing = session.getCaptures().get(0).getTiming();
+        assertEquals("wrong request bytes", 5, timing.getRequestBytes());
+        assertEquals("wrong response bytes", 3, timing.getResponseBytes());
+        assertTrue("phases out of order", timing.getRequestStarted() <= timing.getRequestHeaderSent()
+                && timing.getRequestHeaderSent() <= timing.getRequestSent()
+                && timing.getRequestSent() <= timing.getResponseHeaderReceived()
+                && timing.getResponseHeaderReceived() <= timing.getResponseReceived());
+        target.close();
+
+        assertTrue("no timing in entry", FileUtils.readFileToString(new File(tempDir, "timed.html")).contains("first byte"));
+        assertTrue("no latency in index", FileUtils.readFileToString(new File(tempDir, "index.html")).contains("p99"));
+
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i=1; i<=1000; i++) histogram.record(i * 1_000_000L);
+        assertEquals("wrong p50", 500_000_000L, histogram.getValueAtPercentile(50), 500_000_000L * 0.04);
+        assertEquals("wrong p99", 990_000_000L, histogram.getValueAtPercentile(99), 990_000_000L * 0.04);
+        assertEquals("wrong max", 1_000_000_000L, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testAsyncCapture () throws Exception {
+        final File tempDir = createTempDir(new File(System.getProperty("java.io.tmpdir")), getClass().getSimpleName());
+        final TemplateCaptureTarget target = new TemplateCaptureTarget(tempDir);
+        try (RestexHttpAsyncClient client = new RestexHttpAsyncClient(target)) {
+            client.start();
+
+            final RecordingSession session = target.startRecording("async", "requests through the async client");
+            final HttpPost httpPost = new HttpPost("http://127.0.0.1:"+TEST_PORT+"/test");
+            httpPost.setEntity(new StringEntity("{\"hello\":\"async\"}", ContentType.APPLICATION_JSON));
+            assertEquals("wrong response body", "foo", EntityUtils.toString(client.execute(httpPost, null).get().getEntity()));
+
+            // large enough to arrive in many chunks
+            final HttpResponse large = client.execute(new HttpGet("http://127.0.0.1:"+TEST_PORT+"/large/200000"), null).get();
+            assertEquals("wrong response size", 200000, EntityUtils.toByteArray(large.getEntity()).length);
+
+            final List<SimpleCaptureTarget> captures = session.getCaptures();
+            assertEquals("wrong number of captures", 2, captures.size());
+            assertEquals("wrong captured request body", "{\"hello\":\"async\"}", captures.get(0).getRequestEntity());
+            assertEquals("wrong captured response body", "foo", captures.get(0).getResponseEntity());
+            assertEquals("wrong captured response size", 200000, captures.get(1).getResponseBodySize());
+            assertEquals("wrong timed response size", 200000, captures.get(1).getTiming().getResponseBytes());
+            target.close();
+        }
+        assertTrue("no docs written", new File(tempDir, "async.html").exists());
+    }
+
+    @Test
+    public void testHc5ClassicCapture () throws Exception {
+        final SimpleCaptureTarget target = new SimpleCaptureTarget();
+        try (CloseableHttpClient client = new RestexExecChainHandler(target).addTo(HttpClientBuilder.create()).build()) {
+            final org.apache.hc.client5.http.classic.methods.HttpPost httpPost = new org.apache.hc.client5.http.classic.methods.HttpPost("http://127.0.0.1:"+TEST_PORT+"/test");
+            httpPost.setEntity(new org.apache.hc.core5.http.io.entity.StringEntity("{\"hello\":\"hc5\"}", org.apache.hc.core5.http.ContentType.APPLICATION_JSON));
+            assertEquals("wrong response body", "foo", client.execute(httpPost, response -> org.apache.hc.core5.http.io.entity.EntityUtils.toString(response.getEntity())));
+            assertEquals("wrong captured request body", "{\"hello\":\"hc5\"}", target.getRequestEntity());
+            assertEquals("wrong captured response body", "foo", target.getResponseEntity());
+            assertTrue("request headers added by the client not captured", target.getRequestHeaders().containsKey("Host"));
+            assertEquals("wrong protocol version", "HTTP/1.1", target.getProtocolVersion());
+
+            final byte[] large = client.execute(new org.apache.hc.client5.http.classic.methods.HttpGet("http://127.0.0.1:"+TEST_PORT+"/large/200000"),
+                                                response -> org.apache.hc.core5.http.io.entity.EntityUtils.toByteArray(response.getEntity()));
+            assertEquals("wrong response size", 200000, large.length);
+            assertEquals("wrong captured response size", 200000, target.getResponseBodySize());
+            assertEquals("wrong timed response size", 200000, target.getTiming().getResponseBytes());
+        }
+    }
+
+    @Test
+    public void testHc5Http2Multiplexed () throws Exception {
+        // responds to /h2/{delay}/{id} after delay ms, so the streams finish in a different order than they started
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        final HttpAsyncServer h2Server = H2ServerBootstrap.bootstrap()
+                .setVersionPolicy(HttpVersionPolicy.FORCE_HTTP_2)
+                .register("*", new AsyncServerRequestHandler<Message<HttpRequest, String>>() {
+                    @Override public AsyncRequestConsumer<Message<HttpRequest, String>> prepare(HttpRequest request, org.apache.hc.core5.http.EntityDetails entityDetails, org.apache.hc.core5.http.protocol.HttpContext context) {
+                        return new BasicRequestConsumer<>(new StringAsyncEntityConsumer());
+                    }
+                    @Override public void handle(Message<HttpRequest, String> message, ResponseTrigger responseTrigger, org.apache.hc.core5.http.protocol.HttpContext context) {
+                        final String[] path = message.getHead().getPath().split("/");
+                        scheduler.schedule(() -> {
+                            try {
+                                responseTrigger.submitResponse(AsyncResponseBuilder.create(200).setEntity(path[3]+":"+message.getBody(), org.apache.hc.core5.http.ContentType.TEXT_PLAIN).build(), context);
+                            } catch (Exception e) {
+                                log.error("h2 response failed: "+e, e);
+                            }
+                        }, Long.parseLong(path[2]), TimeUnit.MILLISECONDS);
+                    }
+                }).create();
+        h2Server.start();
+        final int port = ((InetSocketAddress) h2Server.listen(new InetSocketAddress("127.0.0.1", 0), URIScheme.HTTP).get().getAddress()).getPort();
+
+        final File tempDir = createTempDir(new File(System.getProperty("java.io.tmpdir")), getClass().getSimpleName());
+        final TemplateCaptureTarget target = new TemplateCaptureTarget(tempDir);
+        final RestexAsyncExecChainHandler handler = new RestexAsyncExecChainHandler(target);
+        try (CloseableHttpAsyncClient client = handler.addTo(H2AsyncClientBuilder.create()).build()) {
+            client.start();
+            final RecordingSession session = target.startRecording("h2", "multiplexed streams");
+            final int streams = 8;
+            final List<Future<SimpleHttpResponse>> responses = new ArrayList<>();
+            for (int i=0; i<streams; i++) {
+                responses.add(client.execute(SimpleRequestBuilder.post("http://127.0.0.1:"+port+"/h2/"+((streams - i) * 50)+"/"+i)
+                        .setBody("body-"+i, org.apache.hc.core5.http.ContentType.TEXT_PLAIN).build(), null));
+            }
+            for (int i=0; i<streams; i++) assertEquals("wrong response", i+":body-"+i, responses.get(i).get().getBodyText());
+
+            final List<SimpleCaptureTarget> captures = session.getCaptures();
+            assertEquals("wrong number of captures", streams, captures.size());
+            assertTrue("streams were not interleaved", captures.get(0).getRequestUri().endsWith("/"+(streams - 1)));
+            for (SimpleCaptureTarget capture : captures) {
+                final String id = capture.getRequestUri().substring(capture.getRequestUri().lastIndexOf('/') + 1);
+                assertEquals("request body from another stream", "body-"+id, capture.getRequestEntity());
+                assertEquals("response body from another stream", id+":body-"+id, capture.getResponseEntity());
+                assertEquals("wrong protocol version", "HTTP/2.0", capture.getProtocolVersion());
+            }
+            assertTrue("exchanges left in flight", handler.getInFlight().isEmpty());
+            target.close();
+        } finally {
+            h2Server.close(org.apache.hc.core5.io.CloseMode.IMMEDIATE);
+            scheduler.shutdownNow();
+        }
+        assertTrue("no docs written", new File(tempDir, "h2.html").exists());
+    }
+
+    @Test
+    public void testLogRendersSameDocs () throws Exception {
+        final File expectedDir = createTempDir(new File(System.getProperty("java.io.tmpdir")), getClass().getSimpleName());
+        final File logDir = createTempDir(new File(System.getProperty("java.io.tmpdir")), getClass().getSimpleName());
+        final File renderedDir = createTempDir(new File(System.getProperty("java.io.tmpdir")), getClass().getSimpleName());
+
+        final TemplateCaptureTarget expected = new TemplateCaptureTarget(expectedDir);
+        recordSyntheticExchanges(expected);
+        expected.close();
+
+        final LogCaptureTarget logTarget = new LogCaptureTarget(logDir);
+        logTarget.setSegmentSize(1); // one session per segment
+        recordSyntheticExchanges(logTarget);
+        logTarget.close();
+        assertEquals("wrong number of segments", 5, LogCaptureTarget.segments(logDir).size());
+
+        assertEquals(5, CaptureLogRenderer.render(logDir, new TemplateCaptureTarget(renderedDir)));
+        assertSameFiles(expectedDir, renderedDir);
+    }
+
+    @Test
+    public void testLogTargetsShareDir () throws Exception {
+        final File logDir = createTempDir(new File(System.getProperty("java.io.tmpdir")), getClass().getSimpleName());
+        final LogCaptureTarget first = new LogCaptureTarget(logDir);
+        final LogCaptureTarget second = new LogCaptureTarget(logDir);
+        for (LogCaptureTarget target : new LogCaptureTarget[] {first, second, first}) {
+            final RecordingSession session = target.startRecording("shared", target == first ? "first" : "second");
+            recordExchange(session, "GET", "/shared", null, 200, "[]");
+            target.commit();
+        }
+        first.close();
+        second.close();
+        assertEquals("wrong number of segments", 2, LogCaptureTarget.segments(logDir).size());
+
+        final List<String> read = new ArrayList<>();
+        try (CaptureLogReader reader = new CaptureLogReader(logDir)) {
+            CaptureLogReader.LoggedSession session;
+            while ((session = reader.read()) != null) read.add(session.getComment());
+        }
+        assertEquals(Arrays.asList("first", "first", "second"), read);
+    }
+
+    @Test
+    public void testRepeatedHeadersAndCapturePool () throws Exception {
+        final File tempDir = createTempDir(new File(System.getProperty("java.io.tmpdir")), getClass().getSimpleName());
+        final TemplateCaptureTarget target = new TemplateCaptureTarget(tempDir);
+        target.enableCapturePool(4);
+        final HttpClient httpClient = new RestexClientConnectionManager(target).getHttpClient();
+
+        for (int i=0; i<3; i++) {
+            final RecordingSession session = target.startRecording("repeated", "run "+i);
+            final HttpGet httpGet = new HttpGet("http://127.0.0.1:"+TEST_PORT+"/repeated");
+            httpGet.addHeader("X-Repeated", "first-"+i);
+            httpGet.addHeader("X-Repeated", "second-"+i);
+            EntityUtils.consume(httpClient.execute(httpGet).getEntity());
+            httpGet.releaseConnection();
+
+            final SimpleCaptureTarget capture = session.getCaptures().get(0);
+            assertEquals(Arrays.asList("first-"+i, "second-"+i), capture.getRequestHeaderFields().getAll("x-repeated"));
+            assertSame("header lines not cached", capture.getRequestHeaderList(), capture.getRequestHeaderList());
+            assertEquals("map view keeps the last value", "second-"+i, capture.getRequestHeaders().get("X-Repeated"));
+            target.commit();
+            assertTrue("captures not released after commit", session.getCaptures().isEmpty());
+        }
+        assertEquals("wrong number of captures created", 1, target.getCapturePool().getCreated());
+        assertEquals("wrong number of captures reused", 2, target.getCapturePool().getReused());
+        target.close();
+
+        final String html = FileUtils.readFileToString(new File(tempDir, "repeated.html"));
+        for (int i=0; i<3; i++) {
+            assertTrue("first header missing from run "+i, html.contains("X-Repeated: first-"+i));
+            assertTrue("second header missing from run "+i, html.contains("X-Repeated: second-"+i));
+        }
+
+        // repeated response headers survive the capture log too
+        final File logDir = createTempDir(new File(System.getProperty("java.io.tmpdir")), getClass().getSimpleName());
+        final File renderedDir = createTempDir(new File(System.getProperty("java.io.tmpdir")), getClass().getSimpleName());
+        final LogCaptureTarget logTarget = new LogCaptureTarget(logDir);
+        final RecordingSession session = logTarget.startRecording("cookies", "two cookies");
+        session.requestUri("GET", "/cookies");
+        session.requestEntity(RestexEntities.EMPTY, null);
+        session.responseStatus(200, "OK", "HTTP/1.1");
+        session.responseHeader("Set-Cookie", "a=1");
+        session.responseHeader("Set-Cookie", "b=2");
+        session.responseEntity(RestexEntities.EMPTY, null);
+        logTarget.commit();
+        logTarget.close();
+        assertEquals(1, CaptureLogRenderer.render(logDir, new TemplateCaptureTarget(renderedDir)));
+        final String cookies = FileUtils.readFileToString(new File(renderedDir, "cookies.html"));
+        assertTrue("first cookie missing", cookies.contains("Set-Cookie: a"));
+        assertTrue("second cookie missing", cookies.contains("Set-Cookie: b"));
+    }
+
+    @Test
+    public void testTemplateRegistryRendersLikeDefaultResolvers () throws Exception {
+        assertSame("template compiled twice", TemplateRegistry.get(TemplateCaptureTarget.DEFAULT_ENTRY_TEMPLATE),
+                   TemplateRegistry.get(TemplateCaptureTarget.DEFAULT_ENTRY_TEMPLATE));
+
+        final File tempDir = createTempDir(new File(System.getProperty("java.io.tmpdir")), getClass().getSimpleName());
+        final TemplateCaptureTarget target = new TemplateCaptureTarget(tempDir);
+        final RecordingSession session = target.startRecording("resolver", "same output as reflection");
+        session.addNote("first\nsecond");
+        session.requestUri("POST", "/resolver");
+        session.requestHeader("Content-Type", "application/json");
+        session.requestEntity(ByteBuffer.wrap("{\"in\":1}".getBytes()), ContentType.APPLICATION_JSON);
+        session.responseStatus(201, "Created", "HTTP/1.1");
+        session.responseHeader("Set-Cookie", "a");
+        session.responseHeader("Set-Cookie", "b");
+        final ExchangeTiming timing = ExchangeTiming.start();
+        timing.requestSent(9);
+        timing.responseHeaderReceived();
+        timing.responseReceived(8);
+        session.exchangeTiming(timing);
+        session.responseEntity(ByteBuffer.wrap("{\"out\":2}".getBytes()), ContentType.APPLICATION_JSON);
+
+        final Map<String, Object> scope = new LinkedHashMap<>();
+        scope.put(TemplateCaptureTarget.SCOPE_HTTP, session);
+        scope.put(TemplateCaptureTarget.SCOPE_ANCHOR, "resolver");
+        final Template entry = TemplateRegistry.get(TemplateCaptureTarget.DEFAULT_ENTRY_TEMPLATE);
+        final StringWriter resolved = new StringWriter();
+        final long before = CaptureValueResolver.INSTANCE.getResolved();
+        TemplateRegistry.apply(entry, scope, resolved);
+        // requestMethod, requestUri, responseLine, note (twice each) and the rest, none of them left to reflection
+        assertTrue("capture properties were not resolved by CaptureValueResolver", CaptureValueResolver.INSTANCE.getResolved() - before >= 20);
+        assertEquals(entry.apply(scope), resolved.toString());
+        assertTrue("timing not rendered", resolved.toString().contains("request body 9 bytes"));
+        target.reset();
+    }
+
+    @Test
+    public void testParallelCloseMatchesSequential () throws Exception {
+        final File sequentialDir = createTempDir(new File(System.getProperty("java.io.tmpdir")), getClass().getSimpleName());
+        final File parallelDir = createTempDir(new File(System.getProperty("java.io.tmpdir")), getClass().getSimpleName());
+        final File defaultDir = createTempDir(new File(System.getProperty("java.io.tmpdir")), getClass().getSimpleName());
+        final ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            // the second run of each extends the index written by the first
+            for (int run=0; run<2; run++) {
+                final TemplateCaptureTarget sequential = new TemplateCaptureTarget(sequentialDir);
+                sequential.setCloseExecutor(Runnable::run);
+                recordSyntheticExchanges(sequential);
+                sequential.close();
+
+                final TemplateCaptureTarget parallel = new TemplateCaptureTarget(parallelDir);
+                parallel.setCloseExecutor(pool);
+                recordSyntheticExchanges(parallel);
+                parallel.close();
+
+                final TemplateCaptureTarget threads = new TemplateCaptureTarget(defaultDir);
+                recordSyntheticExchanges(threads);
+                threads.close();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertSameFiles(sequentialDir, parallelDir);
+        assertSameFiles(sequentialDir, defaultDir);
+
+        // without an executor set, close() starts its own threads and shuts them down when it is done
+        final String closeName = "TemplateCaptureTarget-close-" + defaultDir.getName();
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while (Thread.getAllStackTraces().keySet().stream().anyMatch(t -> t.getName().equals(closeName))) {
+            assertTrue("close threads still running after close", System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    public void testContentAddressedBodies () throws Exception {
+        final File tempDir = createTempDir(new File(System.getProperty("java.io.tmpdir")), getClass().getSimpleName());
+        final TemplateCaptureTarget target = new TemplateCaptureTarget(tempDir);
+        target.setContentAddressed(true);
+        target.setInlineLimit(64);
+
+        final byte[] fixture = new byte[10000];
+        Arrays.fill(fixture, (byte) 'x');
+        for (int i=0; i<2; i++) {
+            final RecordingSession session = target.startRecording("fixtures", "run "+i);
+            for (int j=0; j<3; j++) {
+                session.requestUri("PUT", "/fixture/"+j);
+                session.requestEntity(ByteBuffer.wrap(fixture), ContentType.TEXT_PLAIN);
+                session.responseStatus(200, "OK", "HTTP/1.1");
+                session.responseEntity(ByteBuffer.wrap(("small "+j).getBytes()), ContentType.TEXT_PLAIN);
+            }
+            target.commit();
+        }
+        target.close();
+
+        final String hash = BodyStore.hash(ByteBuffer.wrap(fixture));
+        assertArrayEquals("body stored more than once", new String[] {hash}, new File(tempDir, TemplateCaptureTarget.BODIES_DIR).list());
+        assertArrayEquals(fixture, FileUtils.readFileToByteArray(target.getBodyStore().file(hash)));
+        assertEquals(1, target.getBodyStore().getWritten());
+        assertEquals(5, target.getBodyStore().getDeduplicated());
+
+        final String html = FileUtils.readFileToString(new File(tempDir, "fixtures.html"));
+        assertEquals("wrong number of links to the stored body", 6, html.split(Pattern.quote("bodies/"+hash), -1).length - 1);
+        assertFalse("large body rendered past the inline limit", html.contains(new String(fixture, 0, 65)));
+        assertTrue("small body not inlined", html.contains("small 2"));
+    }
+
+    @Test
+    public void testPrettyPrintedBodies () throws Exception {
+        final File tempDir = createTempDir(new File(System.getProperty("java.io.tmpdir")), getClass().getSimpleName());
+        final TemplateCaptureTarget target = new TemplateCaptureTarget(tempDir);
+        final RecordingSession session = target.startRecording("pretty", "formatted at render time");
+        recordExchange(session, "POST", "/pretty/json", "{\"id\":1,\"tags\":[\"a\",\"b\"],\"name\":\"<b>\"}", 200, "{\"ok\":true} not json");
+        final StringBuilder objects = new StringBuilder("[{\"i\":0}");
+        for (int i=1; i<3000; i++) objects.append(",{\"i\":").append(i).append('}');
+        session.requestUri("GET", "/pretty/long");
+        session.responseStatus(200, "OK", "HTTP/1.1");
+        session.responseEntity(ByteBuffer.wrap(objects.append(']').toString().getBytes()), ContentType.APPLICATION_JSON);
+        target.commit();
+        target.close();
+
+        final String html = FileUtils.readFileToString(new File(tempDir, "pretty.html"));
+        assertTrue("request not pretty-printed", html.contains("{\n  &quot;id&quot; : 1,\n  &quot;tags&quot; : [ &quot;a&quot;, &quot;b&quot; ]"));
+        assertFalse("body not escaped", html.contains("<b>"));
+        assertTrue("text after invalid JSON dropped", html.contains("&quot;ok&quot; : true\n} not json"));
+        // one object every two lines, so the cap falls just after the 1000th
+        assertTrue("long body not cut", html.contains("&quot;i&quot; : 999\n... (cut at "+PrettyBodyHelper.DEFAULT_MAX_LINES+" lines)"));
+        assertFalse("long body rendered past the line cap", html.contains("&quot;i&quot; : 1000"));
+    }
+
+    @Test
+    public void testCompressedBodies () throws Exception {
+        final String json = jsonObjects(500);
+        final SimpleCaptureTarget target = new SimpleCaptureTarget();
+        final RestexClientConnectionManager manager = new RestexClientConnectionManager(target);
+        HttpResponse response = manager.getHttpClient().execute(new HttpGet("http://127.0.0.1:"+TEST_PORT+"/gzip/500"));
+        assertEquals("client did not get the decompressed body", json, EntityUtils.toString(response.getEntity()));
+        assertEquals("captured copy is not the wire bytes", gzip(json).length, target.getResponseBodySize());
+        assertEquals("gzip", target.getResponseContentEncoding());
+        assertEquals(json, target.getResponseEntity());
+
+        target.setPreviewLimit(100);
+        assertEquals(json.substring(0, 100)+"\n... (more, "+gzip(json).length+" bytes gzip-encoded in all)", target.getResponseEntity());
+
+        // a copy cut short by the capture limit shows what can be decoded
+        manager.setStreaming(true);
+        manager.setCaptureLimit(64);
+        response = manager.getHttpClient().execute(new HttpGet("http://127.0.0.1:"+TEST_PORT+"/gzip/500"));
+        assertEquals(json, EntityUtils.toString(response.getEntity()));
+        assertTrue("truncated copy not noted", target.getResponseEntity().contains("could not decode the rest of 64 gzip-encoded bytes"));
+
+        final SimpleCaptureTarget brotli = new SimpleCaptureTarget();
+        brotli.responseHeader("Content-Encoding", "br");
+        brotli.responseEntity(ByteBuffer.wrap(new byte[] {11, 2, -128}), ContentType.APPLICATION_JSON);
+        assertEquals("application/json, 3 bytes, br-encoded (not decodable)", brotli.getBinaryResponse());
+    }
+
+    @Test
+    public void testIncrementalDocs () throws Exception {
+        final File tempDir = createTempDir(new File(System.getProperty("java.io.tmpdir")), getClass().getSimpleName());
+        final File orders = new File(tempDir, "orders.html");
+        final File users = new File(tempDir, "users.html");
+        final File index = new File(tempDir, "index.html");
+
+        TemplateCaptureTarget target = incrementalRun(tempDir, 0, "[1]");
+        assertEquals(3, target.getPagesPublished());
+        final long published = 1000000000000L;
+        for (File f : new File[] {orders, users, index}) assertTrue(f.setLastModified(published));
+
+        // only the Date headers differ
+        target = incrementalRun(tempDir, 1, "[1]");
+        assertEquals(0, target.getPagesPublished());
+        assertEquals(3, target.getPagesUnchanged());
+        for (File f : new File[] {orders, users, index}) assertEquals("unchanged page rewritten: "+f.getName(), published, f.lastModified());
+
+        target = incrementalRun(tempDir, 2, "[3]");
+        assertEquals(1, target.getPagesPublished());
+        assertTrue("changed page not published", FileUtils.readFileToString(users).contains("[ 3 ]"));
+        assertEquals(published, orders.lastModified());
+        assertEquals(published, index.lastModified());
+        assertEquals("staging directory left behind", 0, tempDir.list((dir, name) -> name.startsWith(".restex-staging")).length);
+        assertFalse("latency shown in incremental mode", FileUtils.readFileToString(index).contains("class=\"latency\""));
+
+        // a run that only records orders leaves the users page, and its place in the index, alone
+        target = new TemplateCaptureTarget(tempDir);
+        target.setIncremental(true);
+        RecordingSession session = target.startRecording("orders", "list orders");
+        recordExchange(session, "GET", "/orders", null, 200, "[1,2]");
+        target.commit();
+        target.close();
+        assertEquals(0, target.getPagesPublished());
+        assertEquals(3, target.getPagesUnchanged());
+        assertTrue("page of an unrecorded context removed", users.exists());
+        assertEquals(published, index.lastModified());
+
+        // unless pruning was asked for
+        target = new TemplateCaptureTarget(tempDir);
+        target.setIncremental(true);
+        target.setPrune(true);
+        session = target.startRecording("orders", "list orders");
+        recordExchange(session, "GET", "/orders", null, 200, "[1,2]");
+        target.commit();
+        target.close();
+        assertEquals(2, target.getPagesPublished());
+        assertFalse("pruned page still there", users.exists());
+        assertTrue(orders.exists());
+        assertFalse("pruned context still in the index", FileUtils.readFileToString(index).contains("users.html"));
+        assertTrue(FileUtils.readFileToString(index).contains("orders.html"));
+    }
+
+    @Test
+    public void testIncrementalDocsTemplateChange () throws Exception {
+        final File tempDir = createTempDir(new File(System.getProperty("java.io.tmpdir")), getClass().getSimpleName());
+        final File orders = new File(tempDir, "orders.html");
+        final File index = new File(tempDir, "index.html");
+        incrementalRun(tempDir, 0, "[1]");
+        assertFalse(FileUtils.readFileToString(orders).contains("<h3>Request</h3>"));
+        final long published = 1000000000000L;
+        for (File f : new File[] {orders, index}) assertTrue(f.setLastModified(published));
+
+        // same captures, different entry template: every page is rendered differently, the index is not
+        final TemplateCaptureTarget target = new TemplateCaptureTarget(tempDir, TemplateCaptureTarget.DEFAULT_INDEX_TEMPLATE,
+                TemplateCaptureTarget.DEFAULT_INDEX_MORE_TEMPLATE, TemplateCaptureTarget.DEFAULT_HEADER_TEMPLATE,
+                TemplateCaptureTarget.DEFAULT_FOOTER_TEMPLATE, "testTemplateEntry");
+        target.setIncremental(true);
+        for (String context : new String[] {"orders", "users"}) {
+            final RecordingSession session = target.startRecording(context, "list "+context);
+            recordExchange(session, "GET", "/"+context, null, 200, context.equals("orders") ? "[1,2]" : "[1]");
+            target.commit();
+        }
+        target.close();
+        assertEquals(2, target.getPagesPublished());
+        assertTrue("page not rendered with the new template", FileUtils.readFileToString(orders).contains("<h3>Request</h3>"));
+        assertEquals(published, index.lastModified());
+    }
+
+    @Test
+    public void testReplayServer () throws Exception {
+        final File logDir = createTempDir(new File(System.getProperty("java.io.tmpdir")), getClass().getSimpleName());
+        final LogCaptureTarget logTarget = new LogCaptureTarget(logDir);
+        final RecordingSession session = logTarget.startRecording("orders", "list, create two, list again");
+        recordExchange(session, "GET", "/orders?page=1&size=10", null, 200, "[]");
+        recordExchange(session, "POST", "/orders", "{\"id\":1}", 201, "created 1");
+        recordExchange(session, "POST", "/orders", "{\"id\":2}", 201, "created 2");
+        recordExchange(session, "GET", "/orders?page=1&size=10", null, 200, "[1,2]");
+        logTarget.commit();
+        logTarget.close();
+
+        final ReplayIndex index = ReplayIndex.load(logDir);
+        assertEquals(4, index.getExchanges());
+        final HttpClient client = HttpClients.createDefault();
+        try (ReplayServer replay = new ReplayServer(index).start(0)) {
+            final String base = replay.getBaseUri();
+            assertReplayed(client, new HttpGet(base+"/orders?size=10&page=1"), 200, "[]");
+
+            // the body picks the response, whatever the order
+            final HttpPost second = new HttpPost(base+"/orders");
+            second.setEntity(new StringEntity("{\"id\":2}"));
+            assertReplayed(client, second, 201, "created 2");
+            final HttpPost first = new HttpPost(base+"/orders");
+            first.setEntity(new StringEntity("{\"id\":1}"));
+            assertReplayed(client, first, 201, "created 1");
+
+            // the same request gets its recorded responses in order, then the last one again
+            assertReplayed(client, new HttpGet(base+"/orders?page=1&size=10"), 200, "[1,2]");
+            assertReplayed(client, new HttpGet(base+"/orders?page=1&size=10"), 200, "[1,2]");
+
+            final HttpResponse miss = client.execute(new HttpGet(base+"/customers"));
+            EntityUtils.consume(miss.getEntity());
+            assertEquals(ReplayServer.STATUS_NOT_RECORDED, miss.getStatusLine().getStatusCode());
+            assertEquals(5, replay.getHits());
+            assertEquals(1, replay.getMisses());
+        }
+    }
+
+    @Test
+    public void testLoadReplay () throws Exception {
+        final File logDir = createTempDir(new File(System.getProperty("java.io.tmpdir")), getClass().getSimpleName());
+        final LogCaptureTarget logTarget = new LogCaptureTarget(logDir);
+        for (int i=0; i<3; i++) {
+            final RecordingSession session = logTarget.startRecording("orders "+(i % 2), "test "+i);
+            session.addNote("list first");
+            recordExchange(session, "GET", "http://api.example.com/orders?page="+i, null, 200, "[]");
+            recordExchange(session, "POST", "/orders", "{\"id\":"+i+"}", 200, "created");
+            logTarget.commit();
+        }
+        // a body cut short at captureLimit is not replayed, and a session left with nothing to send is dropped
+        final RecordingSession truncated = logTarget.startRecording("uploads", "large upload");
+        truncated.exchangeTiming(new ExchangeTiming(0, 1, 2, 3, 4, 100_000, 7));
+        recordExchange(truncated, "POST", "/uploads", "{\"part\":", 200, "created");
+        logTarget.commit();
+        logTarget.close();
+
+        final LoadReplay replay = LoadReplay.load(logDir);
+        assertEquals(3, replay.getSequences().size());
+        assertEquals(Arrays.asList("orders 0", "orders 1"), new ArrayList<>(replay.getContexts().keySet()));
+        assertEquals("list first", replay.getSequences().get(0).getSteps().get(0).getNote());
+
+        replay.setWorkers(4);
+        replay.setIterations(5);
+        LoadReplay.Report report = replay.run("http://127.0.0.1:"+TEST_PORT);
+        log.info("testLoadReplay:\n"+report);
+        assertEquals(30, report.getRequests());
+        assertEquals(0, report.getErrors());
+        assertEquals(0, report.getUnexpectedStatus());
+        assertEquals(Arrays.asList("GET /orders", "POST /orders"), new ArrayList<>(report.getEndpoints().keySet()));
+        assertEquals(15, report.getEndpoints().get("POST /orders").getCount());
+        assertTrue("no throughput", report.getThroughput() > 0);
+
+        // 12 requests at 100/s take at least 110ms, however many workers send them
+        replay.setIterations(2);
+        replay.setRate(100);
+        report = replay.run("http://127.0.0.1:"+TEST_PORT);
+        assertEquals(12, report.getRequests());
+        assertTrue("rate not held: "+report, report.getElapsedNanos() >= TimeUnit.MILLISECONDS.toNanos(105));
+    }
+
+    private TemplateCaptureTarget incrementalRun(File dir, int run, String usersBody) throws IOException {
+        final TemplateCaptureTarget target = new TemplateCaptureTarget(dir);
+        target.setIncremental(true);
+        RecordingSession session = target.startRecording("orders", "list orders");
+        recordExchange(session, "GET", "/orders", null, 200, "[1,2]");
+        session.responseHeader("Date", "run "+run);
+        target.commit();
+        session = target.startRecording("users", "list users");
+        recordExchange(session, "GET", "/users", null, 200, usersBody);
+        session.responseHeader("Date", "run "+run);
+        target.commit();
+        target.close();
+        return target;
+    }
+
+    private static String jsonObjects(int count) {
+        final StringBuilder json = new StringBuilder("[");
+        for (int i=0; i<count; i++) json.append(i == 0 ? "" : ",").append("{\"i\":").append(i).append('}');
+        return json.append(']').toString();
+    }
+
+    private static byte[] gzip(String text) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        return bytes.toByteArray();
+    }
+
+    private void recordExchange(RecordingSession session, String method, String uri, String requestBody, int status, String responseBody) {
+        session.requestUri(method, uri);
+        session.requestEntity(requestBody == null ? RestexEntities.EMPTY : ByteBuffer.wrap(requestBody.getBytes()), ContentType.APPLICATION_JSON);
+        session.responseStatus(status, "", "HTTP/1.1");
+        session.responseHeader("Content-Type", "application/json");
+        session.responseEntity(ByteBuffer.wrap(responseBody.getBytes()), ContentType.APPLICATION_JSON);
+    }
+
+    private void assertReplayed(HttpClient client, HttpRequestBase request, int status, String body) throws IOException {
+        final HttpResponse response = client.execute(request);
+        assertEquals("wrong status for "+request, status, response.getStatusLine().getStatusCode());
+        assertEquals("wrong body for "+request, body, EntityUtils.toString(response.getEntity()));
+        assertEquals("application/json", response.getFirstHeader("Content-Type").getValue());
+    }
+
+    private void recordSyntheticExchanges(SessionCaptureTarget target) throws IOException {
+        for (int i=0; i<5; i++) {
+            final RecordingSession session = target.startRecording("context "+(i % 2), "test "+i);
+            for (int j=0; j<3; j++) {
+                session.addNote("step "+j);
+                session.requestUri("GET", "/synthetic/"+i+"/"+j);
+                session.requestHeader("Accept", "application/json");
+                session.requestEntity(RestexEntities.EMPTY, null);
+                session.responseStatus(200, "OK", "HTTP/1.1");
+                session.responseHeader("Content-Type", "application/json");
+                session.responseEntity(ByteBuffer.wrap(("{\"i\":"+i+",\"j\":"+j+"}").getBytes()), ContentType.APPLICATION_JSON);
+            }
+            target.commit();
+        }
+    }
+
+    private void assertSameFiles(File expectedDir, File actualDir) throws IOException {
+        final String[] expected = expectedDir.list();
+        Arrays.sort(expected);
+        final String[] actual = actualDir.list();
+        Arrays.sort(actual);
+        assertArrayEquals("different files", expected, actual);
+        for (String name : expected) {
+            assertArrayEquals("different contents in "+name,
+                    FileUtils.readFileToByteArray(new File(expectedDir, name)),
+                    FileUtils.readFileToByteArray(new File(actualDir, name)));
+        }
+    }
+
     private Map<String, String> buildResponseHeaderMap(HttpResponse response) {
         Map<String, String> headers = new LinkedHashMap<>();
         for (Header header : response.getAllHeaders()) {